@@ -0,0 +1,145 @@
+package oicu;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.Response;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static oicu.GAVQueryUtils.candidates;
+import static oicu.GAVQueryUtils.fetchCentralSha1s;
+
+// collects the sha1 of concurrent searchByHashOnCentral calls and asks central for all of them in one
+// "q=1:<a> OR 1:<b> ..." query. the candidates are checked concurrently against repo1 .sha1 files like before,
+// and every confirmed candidate is handed to the waiting dependency with that hash.
+// a batch is sent when it is full, or LINGER_MS after its first hash arrived.
+public class CentralHashBatcher {
+    private static final int BATCH_SIZE = 20;
+    private static final int ROWS_PER_HASH = 5;
+    private static final long LINGER_MS = 300;
+    // lingering batches are sent from here, several can be verifying candidates at once.
+    private static final int SENDER_THREADS = 4;
+
+    private final HttpClientProvider httpClient;
+    private final MetricsRegistry metrics;
+    private final TraceRecorder tracer;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(SENDER_THREADS, r -> {
+        Thread t = new Thread(r, "central-hash-batcher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Object lock = new Object();
+    private Batch open;
+
+    private static class Batch {
+        final Set<String> hashes = new LinkedHashSet<>();
+        // hash -> {g, a, v}. key present with null value: central does not know it.
+        // key absent: the answer was cut by the row limit, the caller has to ask alone.
+        final CompletableFuture<Map<String, String[]>> result = new CompletableFuture<>();
+        boolean sent = false;
+        // the track of the dependency opening the batch, a lingering batch is traced there.
+        final int track;
+
+        Batch(int track) {
+            this.track = track;
+        }
+    }
+
+    public CentralHashBatcher(HttpClientProvider httpClient, MetricsRegistry metrics, TraceRecorder tracer) {
+        this.httpClient = httpClient;
+        this.metrics = metrics;
+        this.tracer = tracer;
+    }
+
+    // blocks until the batch holding this hash is answered. null if the batch query failed.
+    public Map<String, String[]> lookup(String hash) {
+        long start = tracer.now();
+        Batch batch;
+        boolean full;
+        synchronized (lock) {
+            if (open == null) {
+                Batch created = new Batch(tracer.currentTrack());
+                open = created;
+                scheduler.schedule(() -> tracer.onTrack(created.track, () -> send(created)), LINGER_MS, TimeUnit.MILLISECONDS);
+            }
+            batch = open;
+            batch.hashes.add(hash);
+            full = batch.hashes.size() >= BATCH_SIZE;
+        }
+        // a full batch is sent, and traced, by the dependency filling it.
+        if (full) {
+            send(batch);
+        }
+        try {
+            return batch.result.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            tracer.span("waiting for central hash batch", "queue", start);
+        }
+    }
+
+    private void send(Batch batch) {
+        Set<String> hashes;
+        synchronized (lock) {
+            if (batch.sent) {
+                return;
+            }
+            batch.sent = true;
+            if (open == batch) {
+                open = null;
+            }
+            hashes = new HashSet<>(batch.hashes);
+        }
+        metrics.counter("d2m_central_hash_batches_total").increment();
+        metrics.counter("d2m_central_hash_batched_total").add(hashes.size());
+        try {
+            batch.result.complete(query(hashes));
+        } catch (Exception e) {
+            metrics.counter("d2m_central_hash_batch_errors_total").increment();
+            batch.result.completeExceptionally(e);
+        }
+    }
+
+    private Map<String, String[]> query(Set<String> hashes) throws Exception {
+        StringJoiner q = new StringJoiner("+OR+");
+        for (String hash : hashes) {
+            q.add("1:" + hash);
+        }
+        String url = "https://central.sonatype.com/solrsearch/select?q=" + q + "&rows=" + hashes.size() * ROWS_PER_HASH + "&wt=json";
+        String jsonData;
+        try (Response response = httpClient.curlWithRetry(url)) {
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("central sonatype query failed: " + response.code() + " " + response.message());
+            }
+            jsonData = response.body().string();
+        }
+        JsonNode rootNode = new ObjectMapper().readTree(jsonData);
+        List<String[]> docs = candidates(rootNode.path("response").path("docs"));
+        // the solr doc does not say which hash it matched, the .sha1 on repo1 does.
+        List<Sha1Key> sha1s = fetchCentralSha1s(httpClient, docs);
+        Map<String, String[]> found = new HashMap<>();
+        boolean allChecked = true;
+        for (int i = 0; i < docs.size(); i++) {
+            Sha1Key sha1 = sha1s.get(i);
+            if (sha1 == null) {
+                allChecked = false;
+            } else if (hashes.contains(sha1.toString())) {
+                found.putIfAbsent(sha1.toString(), docs.get(i));
+            }
+        }
+        // a hash is only known to be missing from central when every doc was returned and checked.
+        // a doc whose .sha1 could not be read may have been it, then the caller asks for that hash alone.
+        boolean complete = allChecked && rootNode.path("response").path("numFound").asInt() <= docs.size();
+        if (complete) {
+            for (String hash : hashes) {
+                found.putIfAbsent(hash, null);
+            }
+        }
+        return found;
+    }
+}
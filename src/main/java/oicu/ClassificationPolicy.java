@@ -0,0 +1,126 @@
+package oicu;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+// answers the ask prompt from a rules file, so a run needs nobody at the terminal.
+// one rule per line, # starts a comment:
+//   private-prefix com/siemens/
+//   public-prefix io/jmix/
+//   private-artifact acme-.*          regex on the whole jar file name
+//   public-artifact legacy-.*\.jar
+//   repo https://maven.example.com/releases/
+//   default private                   private, public or ask (the prompt, also when there is no default)
+// prefixes go into the same tries as the ones typed at the prompt. a private prefix wins over a public one,
+// prefixes over artifact regexes, private over public, and the default comes last.
+// every decision is appended to a tab separated log: jar, sha1, decision, rule.
+public class ClassificationPolicy {
+    public enum Decision {
+        PUBLIC, PRIVATE
+    }
+
+    @Getter
+    private final List<String> privatePrefixes = new ArrayList<>();
+    @Getter
+    private final List<String> publicPrefixes = new ArrayList<>();
+    @Getter
+    private final List<String> repos = new ArrayList<>();
+    private final List<String> privateArtifacts = new ArrayList<>();
+    private final List<String> publicArtifacts = new ArrayList<>();
+    private Pattern privateArtifact;
+    private Pattern publicArtifact;
+    private Decision defaultDecision = null;
+    private BufferedWriter decisionLog;
+
+    private ClassificationPolicy() {
+    }
+
+    @SneakyThrows
+    public static ClassificationPolicy load(Path rulesFile, Path decisionLog) {
+        ClassificationPolicy policy = new ClassificationPolicy();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(rulesFile, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(rulesFile + ":" + lineNumber + ": expected <rule> <value>, got " + line);
+            }
+            String value = parts[1].strip();
+            switch (parts[0]) {
+                case "private-prefix" -> policy.privatePrefixes.add(value);
+                case "public-prefix" -> policy.publicPrefixes.add(value);
+                case "private-artifact" -> policy.privateArtifacts.add(value);
+                case "public-artifact" -> policy.publicArtifacts.add(value);
+                case "repo" -> policy.repos.add(value);
+                case "default" -> policy.defaultDecision = switch (value) {
+                    case "private" -> Decision.PRIVATE;
+                    case "public" -> Decision.PUBLIC;
+                    case "ask" -> null;
+                    default -> throw new IllegalArgumentException(rulesFile + ":" + lineNumber + ": default must be private, public or ask, got " + value);
+                };
+                default -> throw new IllegalArgumentException(rulesFile + ":" + lineNumber + ": unknown rule " + parts[0]);
+            }
+        }
+        // all regexes of a side in one alternation, one match per jar whatever the number of rules.
+        policy.privateArtifact = alternation(policy.privateArtifacts);
+        policy.publicArtifact = alternation(policy.publicArtifacts);
+        policy.decisionLog = Files.newBufferedWriter(decisionLog, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return policy;
+    }
+
+    private static Pattern alternation(List<String> regexes) {
+        if (regexes.isEmpty()) {
+            return null;
+        }
+        StringBuilder alternation = new StringBuilder();
+        for (String regex : regexes) {
+            if (!alternation.isEmpty()) {
+                alternation.append('|');
+            }
+            alternation.append("(?:").append(regex).append(')');
+        }
+        return Pattern.compile(alternation.toString());
+    }
+
+    // null if the rules leave it to the prompt.
+    public Decision decide(Dependency dependency, PrefixTrie privatePrefixs, PrefixTrie publicPrefixs) {
+        String jarName = dependency.path.getFileName().toString();
+        if (dependency.isFqcnBelongsPrefixs(privatePrefixs)) {
+            return record(dependency, Decision.PRIVATE, "private-prefix");
+        }
+        if (dependency.isFqcnBelongsPrefixs(publicPrefixs)) {
+            return record(dependency, Decision.PUBLIC, "public-prefix");
+        }
+        if (privateArtifact != null && privateArtifact.matcher(jarName).matches()) {
+            return record(dependency, Decision.PRIVATE, "private-artifact");
+        }
+        if (publicArtifact != null && publicArtifact.matcher(jarName).matches()) {
+            return record(dependency, Decision.PUBLIC, "public-artifact");
+        }
+        if (defaultDecision != null) {
+            return record(dependency, defaultDecision, "default");
+        }
+        return null;
+    }
+
+    @SneakyThrows
+    public synchronized Decision record(Dependency dependency, Decision decision, String rule) {
+        decisionLog.write(dependency.path.getFileName() + "\t" + dependency.hash + "\t" + decision.name().toLowerCase() + "\t" + rule);
+        decisionLog.newLine();
+        decisionLog.flush();
+        return decision;
+    }
+}
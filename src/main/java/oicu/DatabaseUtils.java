@@ -4,6 +4,7 @@ import lombok.SneakyThrows;
 
 import java.nio.file.Path;
 import java.sql.*;
+import java.util.function.BiConsumer;
 
 public class DatabaseUtils {
     private static final String dependencies = """
@@ -16,6 +17,16 @@ public class DatabaseUtils {
                 repo TEXT
             )""";
 
+    private static final String fingerprints = """
+            CREATE TABLE IF NOT EXISTS FINGERPRINTS (
+                id INTEGER AUTO_INCREMENT PRIMARY KEY,
+                group_id TEXT NOT NULL,
+                artifact_id TEXT NOT NULL,
+                version TEXT NOT NULL,
+                repo TEXT,
+                signature VARBINARY(1024) NOT NULL
+            )""";
+
     private static final String[][] expectedSchema = {
             {"id", "INTEGER", "NO"},
             {"group_id", "CHARACTER VARYING", "YES"},
@@ -105,6 +116,9 @@ public class DatabaseUtils {
             } else {
                 System.out.println("Table exists and schema is correct.");
             }
+            try (Statement stmt = dbConn.createStatement()) {
+                stmt.execute(fingerprints);
+            }
     }
 
     @SneakyThrows
@@ -114,7 +128,7 @@ public class DatabaseUtils {
                 pstmt.setString(1, dependency.getVerifiedGroupId());
                 pstmt.setString(2, dependency.getVerifiedArtifactId());
                 pstmt.setString(3, dependency.getVerifiedVersion());
-                pstmt.setString(4, dependency.hash);
+                pstmt.setString(4, dependency.hash.toString());
                 pstmt.setString(5, dependency.repo);
                 pstmt.executeUpdate();
                 return;
@@ -126,10 +140,9 @@ public class DatabaseUtils {
     @SneakyThrows
     public static boolean getDependencyInDb(Dependency dependency, Connection dbConn) {
         try (PreparedStatement stmt = dbConn.prepareStatement("SELECT group_id, artifact_id, version, hash, repo FROM DEPENDENCIES WHERE hash = ? LIMIT 1")){
-            stmt.setString(1, dependency.hash);
+            stmt.setString(1, dependency.hash.toString());
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                dependency.hash = rs.getString("hash");
                 dependency.repo = rs.getString("repo");
                 dependency.unverifiedGroupId = rs.getString("group_id");
                 dependency.unverifiedArtifactId = rs.getString("artifact_id");
@@ -141,5 +154,27 @@ public class DatabaseUtils {
             return false;
         }
     }
-}
 
+    @SneakyThrows
+    public static void storeFingerprintInDb(Connection dbConn, Dependency dependency, byte[] signature) {
+        try (PreparedStatement pstmt = dbConn.prepareStatement("INSERT INTO FINGERPRINTS (group_id, artifact_id, version, repo, signature) VALUES (?, ?, ?, ?, ?)")) {
+            pstmt.setString(1, dependency.getVerifiedGroupId());
+            pstmt.setString(2, dependency.getVerifiedArtifactId());
+            pstmt.setString(3, dependency.getVerifiedVersion());
+            pstmt.setString(4, dependency.repo);
+            pstmt.setBytes(5, signature);
+            pstmt.executeUpdate();
+        }
+    }
+
+    // consumer gets {group_id, artifact_id, version, repo} and the signature of every row.
+    @SneakyThrows
+    public static void loadFingerprintsFromDb(Connection dbConn, BiConsumer<String[], byte[]> consumer) {
+        try (PreparedStatement stmt = dbConn.prepareStatement("SELECT group_id, artifact_id, version, repo, signature FROM FINGERPRINTS");
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                consumer.accept(new String[]{rs.getString("group_id"), rs.getString("artifact_id"), rs.getString("version"), rs.getString("repo")}, rs.getBytes("signature"));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package oicu;
+
+import lombok.SneakyThrows;
+import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+public class DecompileCache {
+    // content addressed: one .java per top-level class, keyed by the sha-256 of the class bytes
+    // (outer and inner classes together, vineflower merges them into one file),
+    // the vineflower version and the decompile options.
+    // shared between runs and between concurrent jobs, entries are only ever added.
+    private final Path cacheFolder;
+    private final String salt;
+    private final MetricsRegistry metrics;
+
+    public DecompileCache(Path cacheFolder, Map<String, Object> options, MetricsRegistry metrics) throws IOException {
+        this.metrics = metrics;
+        Files.createDirectories(cacheFolder);
+        this.cacheFolder = cacheFolder;
+        this.salt = ConsoleDecompiler.version() + new TreeMap<>(options);
+    }
+
+    // classEntries must be sorted, and be the outer class followed by its inner classes.
+    @SneakyThrows
+    public String key(Path root, List<String> classEntries) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        MessageDigest classDigest = MessageDigest.getInstance("SHA-256");
+        digest.update(salt.getBytes(UTF_8));
+        for (String entry : classEntries) {
+            digest.update(entry.getBytes(UTF_8));
+            digest.update((byte) 0);
+            digest.update(classDigest.digest(Files.readAllBytes(root.resolve(entry))));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private Path cachedSource(String key) {
+        return cacheFolder.resolve(key.substring(0, 2)).resolve(key + ".java");
+    }
+
+    public boolean restore(String key, Path dstFile) throws IOException {
+        Path cached = cachedSource(key);
+        if (!Files.isRegularFile(cached)) {
+            metrics.counter("d2m_cache_requests_total", "cache", "decompile", "result", "miss").increment();
+            return false;
+        }
+        metrics.counter("d2m_cache_requests_total", "cache", "decompile", "result", "hit").increment();
+        Files.createDirectories(dstFile.getParent());
+        Files.copy(cached, dstFile, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+    }
+
+    public void store(String key, Path srcFile) throws IOException {
+        if (!Files.isRegularFile(srcFile)) {
+            // vineflower failed on this class, do not remember the failure.
+            return;
+        }
+        Path cached = cachedSource(key);
+        Files.createDirectories(cached.getParent());
+        // write aside and move, a concurrent reader never sees half a file.
+        Path tmp = Files.createTempFile(cached.getParent(), key, ".tmp");
+        Files.copy(srcFile, tmp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -1,81 +1,227 @@
 package oicu;
 
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
 public class DependenciesBox {
     // consumer, producer
-    // threads will get something away, do something, and return it or destroy it.
+    // threads take one dep away, do something, and return it or destroy it.
     // example : takes one dep and process, later decide to add the dep to ask queue.
     // or take one dep, and later process it properly.
     // either way, must tell the box that it is done with the dep.
-    // big lock is better ? afraid of coherency gurrantee.
-    private final Object lock = new Object();
-    private final Set<Dependency> processingDependencies = new HashSet<>();
-    private final Set<Dependency> askDependencies = new HashSet<>();
+    // takers block until a dep arrives or the box is done, no polling.
+    // the box is done when nothing is queued, held or still to be ingested; nothing can add after that,
+    // since only ingestion and holders of a dep put deps back.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition processingAvailable = lock.newCondition();
+    private final Condition askAvailable = lock.newCondition();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final CountDownLatch ingestionDone = new CountDownLatch(1);
+    private final Queue<Dependency> processingDependencies = new ArrayDeque<>();
+    private final Queue<Dependency> askDependencies = new ArrayDeque<>();
+    // the same jar twice in BOOT-INF/lib is one dependency.
+    private final Set<Dependency> ingested = new DependencySet();
     private int unsettledDependencies = 0;
+    // jars announced by expectIngestion but not yet built into a Dependency.
+    private int pendingIngestion = 0;
+    private int ingestedDependencies = 0;
+
+    public void expectIngestion(int count) {
+        lock.lock();
+        try {
+            pendingIngestion += count;
+        } finally {
+            lock.unlock();
+        }
+        checkDone();
+    }
+
+    public void ingest(Dependency dep) {
+        lock.lock();
+        try {
+            // a duplicate is never processed, it does not count towards the status line either.
+            if (ingested.add(dep)) {
+                processingDependencies.add(dep);
+                processingAvailable.signal();
+                ingestedDependencies += 1;
+            }
+            pendingIngestion -= 1;
+        } finally {
+            lock.unlock();
+        }
+        checkDone();
+    }
+
+    // the jar was announced but will never arrive, e.g. it could not be read.
+    public void skipIngestion() {
+        lock.lock();
+        try {
+            pendingIngestion -= 1;
+        } finally {
+            lock.unlock();
+        }
+        checkDone();
+    }
+
+    public int ingestedSize() {
+        lock.lock();
+        try {
+            return ingestedDependencies;
+        } finally {
+            lock.unlock();
+        }
+    }
 
     public void addprocessing(Dependency dep) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             processingDependencies.add(dep);
+            processingAvailable.signal();
+        } finally {
+            lock.unlock();
         }
     }
 
     public int processingSize(){
-        synchronized (lock) {
+        lock.lock();
+        try {
             return processingDependencies.size();
+        } finally {
+            lock.unlock();
         }
     }
+
+    public int askSize(){
+        lock.lock();
+        try {
+            return askDependencies.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public void addask(Dependency dep) {
-        synchronized (lock) {
+        lock.lock();
+        try {
             askDependencies.add(dep);
+            askAvailable.signal();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public Dependency fetchProcessing() {
-        synchronized (lock) {
-            Iterator<Dependency> iterator = processingDependencies.iterator();
-            if(iterator.hasNext()){
-                Dependency dependency = iterator.next();
-                iterator.remove();
-                unsettledDependencies +=1;
-                return dependency;
-            } else {
-                return null;
+    // blocks until a dep can be processed, null once the box is done.
+    public Dependency takeProcessing() throws InterruptedException {
+        return take(processingDependencies, processingAvailable);
+    }
+
+    // blocks until a dep needs asking, null once the box is done.
+    public Dependency takeAsk() throws InterruptedException {
+        return take(askDependencies, askAvailable);
+    }
+
+    private Dependency take(Queue<Dependency> queue, Condition available) throws InterruptedException {
+        lock.lock();
+        try {
+            while (queue.isEmpty()) {
+                if (done.getCount() == 0) {
+                    return null;
+                }
+                available.await();
             }
+            unsettledDependencies += 1;
+            return queue.poll();
+        } finally {
+            lock.unlock();
         }
     }
-    
-    public Dependency fetchAsk() {
-        synchronized (lock) {
+
+    // takes every dependency in the ask queue that matches, they are settled by the caller without takeAsk.
+    public List<Dependency> takeAsk(Predicate<Dependency> filter) {
+        List<Dependency> taken = new ArrayList<>();
+        lock.lock();
+        try {
             Iterator<Dependency> iterator = askDependencies.iterator();
-            if(iterator.hasNext()){
+            while (iterator.hasNext()) {
                 Dependency dependency = iterator.next();
-                iterator.remove();
-                unsettledDependencies +=1;
-                return dependency;    
-            } else {
-                return null;
+                if (filter.test(dependency)) {
+                    iterator.remove();
+                    taken.add(dependency);
+                }
             }
+        } finally {
+            lock.unlock();
         }
+        // the sweep may have emptied the ask queue, the last thing the box was waiting on.
+        checkDone();
+        return taken;
     }
 
     public boolean isEmpty() {
-        synchronized (lock) {
-            return processingDependencies.isEmpty() && askDependencies.isEmpty() && unsettledDependencies == 0;
-        }
+        return done.getCount() == 0;
+    }
+
+    // blocks until every announced jar is ingested or skipped.
+    public void awaitIngestion() throws InterruptedException {
+        ingestionDone.await();
+    }
+
+    public boolean isIngestionDone() {
+        return ingestionDone.getCount() == 0;
+    }
+
+    // true once the box is done, false if timeout passed first.
+    public boolean awaitDone(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
     }
 
     public void settleOneDependency() {
-        synchronized (lock) {
+        lock.lock();
+        try {
             unsettledDependencies -= 1;
+        } finally {
+            lock.unlock();
         }
+        checkDone();
     }
-    
+
     public void moveAskToProcessing() {
-        synchronized (lock) {
+        lock.lock();
+        try {
             processingDependencies.addAll(askDependencies);
             askDependencies.clear();
+            processingAvailable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkDone() {
+        lock.lock();
+        try {
+            if (pendingIngestion == 0) {
+                ingestionDone.countDown();
+            }
+            if (done.getCount() == 0) {
+                return;
+            }
+            if (processingDependencies.isEmpty() && askDependencies.isEmpty() && unsettledDependencies == 0 && pendingIngestion == 0) {
+                done.countDown();
+                // wake every blocked taker so it sees the box is done.
+                processingAvailable.signalAll();
+                askAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
         }
     }
-}
\ No newline at end of file
+}
@@ -2,28 +2,13 @@ package oicu;
 
 
 import lombok.Getter;
-import lombok.SneakyThrows;
-import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
-import org.eclipse.aether.DefaultRepositorySystemSession;
-import org.eclipse.aether.RepositorySystem;
-import org.eclipse.aether.artifact.Artifact;
-import org.eclipse.aether.artifact.DefaultArtifact;
-import org.eclipse.aether.collection.CollectRequest;
-import org.eclipse.aether.repository.LocalRepository;
-import org.eclipse.aether.repository.RemoteRepository;
-import org.eclipse.aether.supplier.RepositorySystemSupplier;
 
 import java.sql.Connection;
-import java.util.ArrayList;
-import java.util.Collections;
 
-import java.io.FileInputStream;
-import java.io.InputStream;
 import java.nio.file.Path;
-import java.security.MessageDigest;
 import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static oicu.DatabaseUtils.storeDependencyInDb;
 
@@ -37,73 +22,123 @@ public class Dependency {
     private String verifiedArtifactId;
     @Getter
     private String verifiedVersion;
+    // may be set by TransitiveVerifier while a worker holds the dependency, set after every other field.
     @Getter
-    private boolean verified = false;
+    private volatile boolean verified = false;
+    // held while verifying, which collects over the network and writes the db. a lock rather than a
+    // monitor, so a virtual thread waiting on it or holding it through io does not pin its carrier.
+    final ReentrantLock verifyLock = new ReentrantLock();
     private boolean resolved = false;
     private boolean resolvable = false;
     private Connection dbConn;
+    private ResolverService resolver;
     @Getter
     private String classPath;
+    // every package with a class in the jar, like com/example/
+    @Getter
+    private Set<String> packages;
     
-    String hash;
+    Sha1Key hash;
     Path path;
     String repo;
-    private int hashCode;
+    // lookups that already ran without finding it, a stage name or stage@repo. a dependency sent back
+    // to processing, e.g. after a repo was added, only runs the lookups not in here.
+    private final Set<String> checkedLookups = ConcurrentHashMap.newKeySet();
 
-    Dependency(Path path, Connection dbConn) {
+    Dependency(Path path, Connection dbConn, ResolverService resolver) {
         this.path = path;
         this.dbConn = dbConn;
-        calculateSHA1();
-        getGavFromJar();
-        getClassFromJar();
+        this.resolver = resolver;
+        // one pass over the jar: hash, pom.properties and class entries.
+        JarFingerprint fingerprint = JarFingerprint.of(path);
+        hash = fingerprint.getSha1();
+        getGavFromJar(fingerprint.getPomProperties());
+        classPath = fingerprint.getFirstClass();
+        packages = fingerprint.getPackages();
     }
 
     @Override
     public int hashCode() {
-        return hashCode;
+        return hash.hashCode();
     }
 
+    // the same jar content is the same dependency, whatever its path.
     @Override
     public boolean equals(Object obj) {
-        return obj.hashCode() == hashCode;
+        return obj instanceof Dependency other && hash.equals(other.hash);
     }
     
-    @SneakyThrows
-    private void calculateSHA1() {
-            MessageDigest digest = MessageDigest.getInstance("SHA-1");
-            InputStream fis = new FileInputStream(path.toFile());
-            int n = 0;
-            byte[] buffer = new byte[8192];
-            while (n != -1) {
-                n = fis.read(buffer);
-                if (n > 0) {
-                    digest.update(buffer, 0, n);
-                }
-            }
-            fis.close();
-            StringBuilder sb = new StringBuilder();
-            for (byte b : digest.digest()) {
-                sb.append(String.format("%02x", b));
-            }
-            hash = sb.toString();
-            hashCode = Arrays.hashCode(hash.getBytes());
+    // where a verified gav comes from, which decides whether it is resolved and stored.
+    private enum Source {
+        // a lookup matched this jar's sha1 or content, resolved against repo and stored when resolvable.
+        LOOKUP,
+        // trusted without asking repo, like the offline sha1 index. kept even when repo can not be reached
+        // from here, e.g. on an air-gapped host resolving through its own mirror.
+        KNOWN,
+        // a similar artifact, not this jar. resolved like a lookup, but never stored as sha1 -> gav,
+        // or later runs would take the guess for an exact hit.
+        FUZZY
     }
-    
+
     public void verify(String groupId, String artifactId, String version, String repo) {
-        if(Objects.equals(version, "5.7.2")){
-            System.out.println(1);
-        }
-        if (!verified){
-            verified = true;
+        verify(groupId, artifactId, version, repo, Source.LOOKUP);
+    }
+
+    public void verifyKnown(String groupId, String artifactId, String version, String repo) {
+        verify(groupId, artifactId, version, repo, Source.KNOWN);
+    }
+
+    public void verifyFuzzy(String groupId, String artifactId, String version, String repo) {
+        verify(groupId, artifactId, version, repo, Source.FUZZY);
+    }
+
+    private void verify(String groupId, String artifactId, String version, String repo, Source source) {
+        verifyLock.lock();
+        try {
+            if (verified) {
+                return;
+            }
             verifiedGroupId = groupId;
             verifiedArtifactId = artifactId;
             verifiedVersion = version;
             this.repo = repo;
+            if (source == Source.KNOWN) {
+                resolved = true;
+                resolvable = true;
+            }
             if (!isResolvable()){
                 addDepenencyToLocal();
-            } else {
+            } else if (source != Source.FUZZY) {
                 storeDependencyInDb(this,dbConn);
             }
+            // the last write, a thread seeing verified also sees the final gav and repo.
+            verified = true;
+        } finally {
+            verifyLock.unlock();
+        }
+    }
+
+    public boolean isChecked(String stage) {
+        return checkedLookups.contains(stage);
+    }
+
+    public void markChecked(String stage) {
+        checkedLookups.add(stage);
+    }
+
+    public List<String> uncheckedRepos(String stage, List<String> repos) {
+        List<String> unchecked = new ArrayList<>();
+        for (String repo : repos) {
+            if (!checkedLookups.contains(stage + "@" + repo)) {
+                unchecked.add(repo);
+            }
+        }
+        return unchecked;
+    }
+
+    public void markChecked(String stage, List<String> repos) {
+        for (String repo : repos) {
+            checkedLookups.add(stage + "@" + repo);
         }
     }
 
@@ -111,8 +146,7 @@ public class Dependency {
         return unverifiedGroupId != null && unverifiedArtifactId != null && unverifiedVersion != null;
     }
 
-    @SneakyThrows
-    public void getGavFromJar() {
+    public void getGavFromJar(Properties pomProperties) {
         // groupid from pom.properties
         // AV from file name is could, otherwise from pom.properties
         // file multiple pom.properties , groupid is randomOne
@@ -153,55 +187,23 @@ public class Dependency {
             unverifiedArtifactId = artifactId.toString();
             unverifiedVersion = version.toString();
         }
-        try (JarFile jarFile = new JarFile(path.toFile())) {
-            Enumeration<JarEntry> entries = jarFile.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                if (entry.getName().startsWith("META-INF/maven/") && entry.getName().endsWith("/pom.properties")) {
-                    try (InputStream is = jarFile.getInputStream(entry)) {
-                        Properties properties = new Properties();
-                        properties.load(is);
-                        if (count !=1){
-                            unverifiedArtifactId = properties.getProperty("artifactId");
-                            unverifiedVersion = properties.getProperty("version");
-                        }
-                        unverifiedGroupId = properties.getProperty("groupId");
-                        return;
-                    }
-                }
-            }
-        } 
-    }
-    
-    @SneakyThrows
-    public void getClassFromJar(){
-        try (JarFile jarFile = new JarFile(path.toFile())) {
-            Enumeration<JarEntry> entries = jarFile.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
-                String entryName = entry.getName();
-                if (entryName.endsWith(".class")) {
-                    classPath = entryName;
-                    return;
-                }
+        if (pomProperties != null) {
+            if (count !=1){
+                unverifiedArtifactId = pomProperties.getProperty("artifactId");
+                unverifiedVersion = pomProperties.getProperty("version");
             }
+            unverifiedGroupId = pomProperties.getProperty("groupId");
         }
-        classPath = null;
     }
     
-    
-    public boolean isFqcnBelongsPrefixs(List<String> privatePrefixs){
-        if (classPath != null){
-            for (String privatePrefix: privatePrefixs){
-                if (classPath.startsWith(privatePrefix)){
-                    return true;
-                }
-            }   
+    // a rule matches if it is a prefix of any package in the jar, or of the first class for rules naming a class.
+    public boolean isFqcnBelongsPrefixs(PrefixTrie prefixes){
+        if (packages != null && prefixes.matchesAny(packages)){
+            return true;
         }
-        return false;
+        return classPath != null && prefixes.matches(classPath);
     }
     
-    // based on: https://github.com/apache/maven-resolver/blob/562efa97876b5bec721c1a6c1410306cefe82837/maven-resolver-demos/maven-resolver-demo-snippets/src/main/java/org/apache/maven/resolver/examples/GetDependencyTree.java
     public boolean isResolvable(){
         if (resolved){
             return resolvable;
@@ -214,37 +216,13 @@ public class Dependency {
             resolvable = false;
             return false;
         }
-        RepositorySystem system = new RepositorySystemSupplier().get();
-        DefaultRepositorySystemSession session = MavenRepositorySystemUtils.newSession();
-        LocalRepository localRepo = new LocalRepository("target/local-repo");
-        session.setLocalRepositoryManager(system.newLocalRepositoryManager(session, localRepo));
-        // "org.jeecgframework.boot:jeecg-boot-starter-cloud:2.4.0"
-        Artifact artifact = new DefaultArtifact(verifiedGroupId+":"+verifiedArtifactId+":"+verifiedVersion);
-        CollectRequest collectRequest = new CollectRequest();
-        collectRequest.setRoot(new org.eclipse.aether.graph.Dependency(artifact, ""));
-        RemoteRepository newCentralRepository = new RemoteRepository.Builder("central", "default", repo).build();
-        collectRequest.setRepositories(new ArrayList<>(Collections.singletonList(newCentralRepository)));
-        try {
-            system.collectDependencies(session, collectRequest);
-            resolvable = true;
-            return true;
-        } catch (Exception e) {
-            resolvable = false;
-            return false;
-        }
+        resolvable = resolver.isResolvable(verifiedGroupId, verifiedArtifactId, verifiedVersion, repo);
+        return resolvable;
     }
 
-    @SneakyThrows
     private void addDepenencyToLocal(){
         verifiedGroupId = "oicu";
-        String commandTemplate = "mvn install:install-file -Dfile=%s -DgroupId=%s -DartifactId=%s -Dversion=%s -Dpackaging=jar";
-        String cmd = String.format(
-                commandTemplate,
-                path.toAbsolutePath(),
-                verifiedGroupId,
-                verifiedArtifactId,
-                verifiedVersion
-        );
-        Runtime.getRuntime().exec(cmd);
+        // installed in one batch with the other unresolvable jars, see ResolverService.installQueued
+        resolver.queueInstall(this);
     }
 }
@@ -0,0 +1,174 @@
+package oicu;
+
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// set of dependencies keyed on their sha1, open addressing with linear probing in one array.
+// no entry objects per element like HashSet, which matters with tens of thousands of jars.
+// removed slots become tombstones so the iterator can remove without moving other elements;
+// they are dropped on the next resize. not thread safe, like HashSet.
+public class DependencySet extends AbstractSet<Dependency> {
+    private static final Object REMOVED = new Object();
+    private static final int MIN_CAPACITY = 16;
+
+    private Object[] table = new Object[MIN_CAPACITY];
+    private int size = 0;
+    // live elements plus tombstones, the probe sequences only end at a null slot.
+    private int used = 0;
+    private int modCount = 0;
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Dependency dependency && indexOf(dependency) >= 0;
+    }
+
+    @Override
+    public boolean add(Dependency dependency) {
+        if (indexOf(dependency) >= 0) {
+            return false;
+        }
+        if ((used + 1) * 4 > table.length * 3) {
+            resize(size + 1);
+        }
+        int mask = table.length - 1;
+        int i = slot(dependency, mask);
+        while (table[i] != null && table[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (table[i] == null) {
+            used++;
+        }
+        table[i] = dependency;
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Dependency dependency)) {
+            return false;
+        }
+        int i = indexOf(dependency);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        table = new Object[MIN_CAPACITY];
+        size = 0;
+        used = 0;
+        modCount++;
+    }
+
+    @Override
+    public Iterator<Dependency> iterator() {
+        return new Iterator<>() {
+            private int next = advance(0);
+            private int last = -1;
+            private int expectedModCount = modCount;
+
+            private int advance(int from) {
+                while (from < table.length && (table[from] == null || table[from] == REMOVED)) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < table.length;
+            }
+
+            @Override
+            public Dependency next() {
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= table.length) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = advance(next + 1);
+                return (Dependency) table[last];
+            }
+
+            @Override
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (expectedModCount != modCount) {
+                    throw new ConcurrentModificationException();
+                }
+                removeAt(last);
+                last = -1;
+            }
+        };
+    }
+
+    private void removeAt(int i) {
+        int mask = table.length - 1;
+        if (table[(i + 1) & mask] == null) {
+            // no probe sequence goes past this slot, nor past the tombstones right before it.
+            do {
+                table[i] = null;
+                used--;
+                i = (i - 1) & mask;
+            } while (table[i] == REMOVED);
+        } else {
+            table[i] = REMOVED;
+        }
+        size--;
+    }
+
+    private int indexOf(Dependency dependency) {
+        int mask = table.length - 1;
+        int i = slot(dependency, mask);
+        while (table[i] != null) {
+            if (table[i] != REMOVED && table[i].equals(dependency)) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int slot(Dependency dependency, int mask) {
+        return dependency.hashCode() & mask;
+    }
+
+    private void resize(int minSize) {
+        int capacity = MIN_CAPACITY;
+        while (minSize * 2 > capacity) {
+            capacity <<= 1;
+        }
+        Object[] old = table;
+        table = new Object[capacity];
+        used = 0;
+        int mask = capacity - 1;
+        for (Object element : old) {
+            if (element == null || element == REMOVED) {
+                continue;
+            }
+            int i = slot((Dependency) element, mask);
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = element;
+            used++;
+        }
+    }
+}
@@ -4,11 +4,13 @@ import lombok.SneakyThrows;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.Enumeration;
 import java.util.Scanner;
+import java.util.function.Predicate;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.stream.Stream;
@@ -94,6 +96,26 @@ public class FileSystemUtils {
         }
     }
 
+    // raw copy of jar entries, no decompilation. entries rejected by filter are skipped.
+    public static void extractJar(Path jarFile, Path dstFolder, Predicate<String> filter) throws IOException {
+        Path root = dstFolder.toAbsolutePath().normalize();
+        try (JarFile jar = new JarFile(jarFile.toFile())) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !filter.test(entry.getName())) {
+                    continue;
+                }
+                Path destPath = root.resolve(entry.getName()).normalize();
+                assertion(destPath.startsWith(root), "jar entry escapes destination folder: " + entry.getName());
+                Files.createDirectories(destPath.getParent());
+                try (InputStream is = jar.getInputStream(entry)) {
+                    Files.copy(is, destPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
     @SneakyThrows
     public static void printClassName(Path decompileFolder){
         try (Stream<Path> stream = Files.walk(decompileFolder)) {
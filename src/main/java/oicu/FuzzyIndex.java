@@ -0,0 +1,224 @@
+package oicu;
+
+import lombok.SneakyThrows;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static oicu.DatabaseUtils.loadFingerprintsFromDb;
+import static oicu.DatabaseUtils.storeFingerprintInDb;
+
+// finds public jars that were re-zipped or re-signed, so their sha1 is unknown but their classes are not.
+// a jar is the set of hashes of its classes, with debug info stripped so a different compiler -g does not matter.
+// the set is reduced to a minhash signature, and signatures are bucketed by lsh bands:
+// a query only compares against artifacts sharing at least one band, then estimates jaccard from the signatures.
+// known artifacts are the verified public dependencies, kept in the database across runs.
+public class FuzzyIndex {
+    private static final int SIGNATURE_SIZE = 128;
+    // 32 bands of 4 rows: two jars with jaccard 0.5 share a band with probability ~0.87
+    private static final int BANDS = 32;
+    private static final int ROWS = SIGNATURE_SIZE / BANDS;
+    private static final long[] SEEDS = new long[SIGNATURE_SIZE];
+
+    static {
+        Random random = new Random(0x6f696375L);
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            SEEDS[i] = random.nextLong();
+        }
+    }
+
+    private static class Artifact {
+        final String groupId;
+        final String artifactId;
+        final String version;
+        final String repo;
+        final long[] signature;
+
+        Artifact(String groupId, String artifactId, String version, String repo, long[] signature) {
+            this.groupId = groupId;
+            this.artifactId = artifactId;
+            this.version = version;
+            this.repo = repo;
+            this.signature = signature;
+        }
+    }
+
+    private final Map<Long, Queue<Artifact>> buckets = new ConcurrentHashMap<>();
+    private final Set<String> known = ConcurrentHashMap.newKeySet();
+    private final Connection dbConn;
+    private final double threshold;
+    private final TraceRecorder tracer;
+
+    public FuzzyIndex(Connection dbConn, double threshold, TraceRecorder tracer) {
+        this.dbConn = dbConn;
+        this.threshold = threshold;
+        this.tracer = tracer;
+        loadFingerprintsFromDb(dbConn, (gav, signature) -> add(new Artifact(gav[0], gav[1], gav[2], gav[3], fromBytes(signature))));
+    }
+
+    private void add(Artifact artifact) {
+        if (!known.add(artifact.groupId + ":" + artifact.artifactId + ":" + artifact.version)) {
+            return;
+        }
+        for (int band = 0; band < BANDS; band++) {
+            buckets.computeIfAbsent(bandKey(artifact.signature, band), k -> new ConcurrentLinkedQueue<>()).add(artifact);
+        }
+    }
+
+    // remember a verified public dependency so later re-packaged copies of it can be matched.
+    public void learn(Dependency dependency) {
+        if (!dependency.isVerified() || dependency.repo == null || dependency.repo.isEmpty()) {
+            return;
+        }
+        String gav = dependency.getVerifiedGroupId() + ":" + dependency.getVerifiedArtifactId() + ":" + dependency.getVerifiedVersion();
+        if (known.contains(gav)) {
+            return;
+        }
+        long[] signature = signature(dependency.path);
+        if (signature == null) {
+            return;
+        }
+        add(new Artifact(dependency.getVerifiedGroupId(), dependency.getVerifiedArtifactId(), dependency.getVerifiedVersion(), dependency.repo, signature));
+        storeFingerprintInDb(dbConn, dependency, toBytes(signature));
+    }
+
+    // verifies the dependency with the most similar known artifact, if it is similar enough and its repo,
+    // remembered from an earlier run, is live. the repo is added to repos, so the pom declares it.
+    public void match(Dependency dependency, List<String> repos, HttpClientProvider httpClient) {
+        long start = tracer.now();
+        long[] signature = signature(dependency.path);
+        if (signature == null) {
+            return;
+        }
+        Artifact best = null;
+        double bestSimilarity = threshold;
+        Set<Artifact> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int band = 0; band < BANDS; band++) {
+            Queue<Artifact> bucket = buckets.get(bandKey(signature, band));
+            if (bucket == null) {
+                continue;
+            }
+            for (Artifact candidate : bucket) {
+                if (!seen.add(candidate)) {
+                    continue;
+                }
+                double similarity = similarity(signature, candidate.signature);
+                if (similarity >= bestSimilarity) {
+                    best = candidate;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        if (best == null) {
+            return;
+        }
+        if (!repos.contains(best.repo)) {
+            if (!httpClient.isLive(best.repo)) {
+                return;
+            }
+            repos.add(best.repo);
+        }
+        // in the trace rather than on stdout, which may be showing the ask prompt.
+        tracer.span("looks like " + best.groupId + ":" + best.artifactId + ":" + best.version, "fuzzy", start,
+                "similarity", String.format("%.2f", bestSimilarity), "repo", best.repo);
+        dependency.verifyFuzzy(best.groupId, best.artifactId, best.version, best.repo);
+    }
+
+    private static double similarity(long[] a, long[] b) {
+        int same = 0;
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / SIGNATURE_SIZE;
+    }
+
+    private static long bandKey(long[] signature, int band) {
+        long key = band;
+        for (int i = band * ROWS; i < (band + 1) * ROWS; i++) {
+            key = mix(key * 31 + signature[i]);
+        }
+        return key;
+    }
+
+    // minhash over the hashes of the normalized classes, null if the jar has no class.
+    @SneakyThrows
+    static long[] signature(Path jarPath) {
+        long[] signature = new long[SIGNATURE_SIZE];
+        Arrays.fill(signature, Long.MAX_VALUE);
+        boolean hasClass = false;
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        try (JarFile jarFile = new JarFile(jarPath.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (!entry.getName().endsWith(".class") || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                byte[] normalized;
+                try (InputStream is = jarFile.getInputStream(entry)) {
+                    normalized = normalize(is.readAllBytes());
+                }
+                digest.update(entry.getName().getBytes(UTF_8));
+                long feature = ByteBuffer.wrap(digest.digest(normalized)).getLong();
+                for (int i = 0; i < SIGNATURE_SIZE; i++) {
+                    signature[i] = Math.min(signature[i], mix(feature ^ SEEDS[i]));
+                }
+                hasClass = true;
+            }
+        }
+        return hasClass ? signature : null;
+    }
+
+    // drop line numbers, local variable names and source file, keep everything that makes the class behave.
+    private static byte[] normalize(byte[] classBytes) {
+        try {
+            ClassReader reader = new ClassReader(classBytes);
+            ClassWriter writer = new ClassWriter(0);
+            reader.accept(writer, ClassReader.SKIP_DEBUG);
+            return writer.toByteArray();
+        } catch (RuntimeException e) {
+            // newer class file than asm knows, or not a class at all.
+            return classBytes;
+        }
+    }
+
+    // murmur3 finalizer
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    private static byte[] toBytes(long[] signature) {
+        ByteBuffer buffer = ByteBuffer.allocate(SIGNATURE_SIZE * Long.BYTES);
+        for (long value : signature) {
+            buffer.putLong(value);
+        }
+        return buffer.array();
+    }
+
+    private static long[] fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long[] signature = new long[SIGNATURE_SIZE];
+        for (int i = 0; i < SIGNATURE_SIZE; i++) {
+            signature[i] = buffer.getLong();
+        }
+        return signature;
+    }
+}
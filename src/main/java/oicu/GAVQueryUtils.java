@@ -3,112 +3,319 @@ package oicu;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.SneakyThrows;
+import okhttp3.Request;
 import okhttp3.Response;
-import org.apache.commons.io.FileUtils;
 
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.sql.Connection;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
 
 import static oicu.DatabaseUtils.getDependencyInDb;
-import static oicu.JarUtil.calculateJarSimilarity;
 
 
 public class GAVQueryUtils {
+    static final String CENTRAL_REPO = "https://repo1.maven.org/maven2/";
+    private static final int CANDIDATE_PARALLELISM = 5;
+    // platform threads, or one virtual thread per check with --virtual-threads, see useVirtualThreads.
+    private static volatile ExecutorService candidateExecutor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "candidate-check");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // candidate checks of every running dependency would otherwise start platform threads of their own,
+    // which are not bounded by anything but the number of dependencies.
+    static void useVirtualThreads() {
+        candidateExecutor = LookupPipeline.newThreadPerTaskExecutor();
+    }
+
+    // content of the .sha1 next to the jar on repo1, null if there is none.
+    static String fetchCentralSha1(HttpClientProvider httpClient, String groupId, String artifactId, String version) {
+        return fetchSha1(httpClient, CENTRAL_REPO, groupId, artifactId, version);
+    }
+
+    @SneakyThrows
+    static String fetchSha1(HttpClientProvider httpClient, String repo, String groupId, String artifactId, String version) {
+        if (!repo.endsWith("/")) {
+            repo += "/";
+        }
+        String sha1Path = groupId.replace('.', '/') + "/" + artifactId + "/" + version + "/" + artifactId + "-" + version + ".jar.sha1";
+        try (Response sha1Response = httpClient.curlWithRetry(repo + sha1Path)) {
+            // otherwise 404 or 302, just ignore.
+            if (!sha1Response.isSuccessful()) {
+                return null;
+            }
+            return sha1Response.body().string();
+        }
+    }
+
+    static void searchByHashOnCentral(Dependency dependency, Connection dbConn, HttpClientProvider httpClient, CentralHashBatcher hashBatcher) {
+        String hash = dependency.hash.toString();
+        Map<String, String[]> batch = hashBatcher.lookup(hash);
+        if (batch != null && batch.containsKey(hash)) {
+            String[] gav = batch.get(hash);
+            if (gav != null) {
+                dependency.verify(gav[0], gav[1], gav[2], CENTRAL_REPO);
+            }
+            return;
+        }
+        // batch failed, or too many docs for the row limit: ask for this hash alone.
+        searchByHashOnCentral(dependency, dbConn, httpClient);
+    }
+
     @SneakyThrows
     private static void searchByHashOnCentral(Dependency dependency, Connection dbConn, HttpClientProvider httpClient) {
         String url = "https://central.sonatype.com/solrsearch/select?q=1:" + dependency.hash + "&rows=20&wt=json";
-        Response response = httpClient.curlWithRetry(url);
-        if (!response.isSuccessful()) {
-            throw new RuntimeException("central sonatype query failed: " + response.code() + " " + response.message());
+        String jsonData;
+        try (Response response = httpClient.curlWithRetry(url)) {
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("central sonatype query failed: " + response.code() + " " + response.message());
+            }
+            jsonData = response.body().string();
         }
-        String jsonData = response.body().string();
-        response.close();
         ObjectMapper objectMapper = new ObjectMapper();
         JsonNode rootNode = objectMapper.readTree(jsonData);
         JsonNode docsNode = rootNode.path("response").path("docs");
+        // have to check because sometimes maven central hash search is wrong.
+        // https://central.sonatype.com/solrsearch/select?q=1:5415a6565bfd65e80fba0c00b161826b67c09abe&wt=json
+        String[] gav = firstMatch(candidates(docsNode), httpClient,
+                candidate -> dependency.hash.matches(fetchCentralSha1(httpClient, candidate[0], candidate[1], candidate[2])));
+        if (gav != null) {
+            dependency.verify(gav[0], gav[1], gav[2], CENTRAL_REPO);
+        }
+    }
+
+    static List<String[]> candidates(JsonNode docsNode) {
+        List<String[]> candidates = new ArrayList<>();
         for (JsonNode doc : docsNode) {
-            String groupdId = doc.get("g").asText();
-            String artifactid = doc.get("a").asText();
-            String version = doc.get("v").asText();
-            String repo = "https://repo1.maven.org/maven2/";
-            // have to check because sometimes maven central hash search is wrong.
-            // https://central.sonatype.com/solrsearch/select?q=1:5415a6565bfd65e80fba0c00b161826b67c09abe&wt=json
-            String sha1Path = groupdId.replace('.', '/') + "/" + artifactid + "/" + version + "/" + artifactid + "-" + version + ".jar.sha1";
-            try (Response sha1Response = httpClient.curlWithRetry(repo + sha1Path)) {
-                // otherwise 404 or 302, just ignore.
-                if (!sha1Response.isSuccessful()) {
-                    continue;
+            candidates.add(new String[]{doc.get("g").asText(), doc.get("a").asText(), doc.get("v").asText()});
+        }
+        return candidates;
+    }
+
+    // the .sha1 on repo1 of every gav, fetched concurrently, at most CANDIDATE_PARALLELISM at a time.
+    // null for a gav whose .sha1 could not be read: a 404, a failed request or no sha1 in the body.
+    @SneakyThrows
+    static List<Sha1Key> fetchCentralSha1s(HttpClientProvider httpClient, List<String[]> gavs) {
+        HttpClientProvider.CallGroup group = new HttpClientProvider.CallGroup();
+        Semaphore window = new Semaphore(CANDIDATE_PARALLELISM);
+        List<Future<Sha1Key>> futures = new ArrayList<>();
+        for (String[] gav : gavs) {
+            window.acquire();
+            futures.add(candidateExecutor.submit(httpClient.inCallGroup(group, () -> {
+                try {
+                    return Sha1Key.parseChecksum(fetchCentralSha1(httpClient, gav[0], gav[1], gav[2]));
+                } finally {
+                    window.release();
                 }
-                String body = sha1Response.body().string();
-                if (dependency.hash.equals(body)) {
-                    dependency.verify(groupdId, artifactid, version, repo);
-                    return;
+            })));
+        }
+        List<Sha1Key> sha1s = new ArrayList<>();
+        for (Future<Sha1Key> future : futures) {
+            try {
+                sha1s.add(future.get());
+            } catch (ExecutionException e) {
+                sha1s.add(null);
+            }
+        }
+        return sha1s;
+    }
+
+    // checks candidates concurrently, at most CANDIDATE_PARALLELISM at a time, and returns the first that passes.
+    // once one passes, the others are interrupted and their http calls cancelled. null if none passes.
+    @SneakyThrows
+    private static <T> T firstMatch(List<T> candidates, HttpClientProvider httpClient, Predicate<T> check) {
+        HttpClientProvider.CallGroup group = new HttpClientProvider.CallGroup();
+        CompletionService<T> completionService = new ExecutorCompletionService<>(candidateExecutor);
+        List<Future<T>> futures = new ArrayList<>();
+        Iterator<T> iterator = candidates.iterator();
+        int running = 0;
+        try {
+            while (running > 0 || iterator.hasNext()) {
+                while (running < CANDIDATE_PARALLELISM && iterator.hasNext()) {
+                    T candidate = iterator.next();
+                    futures.add(completionService.submit(httpClient.inCallGroup(group, () -> check.test(candidate) ? candidate : null)));
+                    running += 1;
+                }
+                Future<T> done = completionService.take();
+                running -= 1;
+                try {
+                    T result = done.get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException ignore) {
+                    // a failed check is a negative one.
                 }
             }
+            return null;
+        } finally {
+            group.cancel();
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    // fetches only the zip central directory of the candidate with range requests and compares
+    // names, crc32s and sizes with the local jar. a server ignoring the range sends the whole jar, which
+    // is then compared as it is. null if the zip is not a plain one (zip64) or a range answer can not be
+    // read, the caller then downloads the whole jar.
+    @SneakyThrows
+    private static Boolean compareCentralDirectory(String downloadUrl, Dependency dependency, HttpClientProvider httpClient) {
+        ByteBuffer tail;
+        long tailStart;
+        Request tailRequest = new Request.Builder().url(downloadUrl).header("Range", "bytes=-" + JarUtil.EOCD_MAX_SIZE).build();
+        try (Response response = httpClient.curlWithRetry(tailRequest)) {
+            if (response.code() == 404) {
+                return false;
+            }
+            if (response.code() == 200) {
+                return compareJarStream(response, dependency);
+            }
+            if (response.code() != 206) {
+                return null;
+            }
+            tailStart = rangeStart(response.header("Content-Range"));
+            tail = ByteBuffer.wrap(response.body().bytes());
+        }
+        int eocd = JarUtil.findEndOfCentralDirectory(tail);
+        if (tailStart < 0 || eocd < 0) {
+            return null;
+        }
+        ByteBuffer eocdRecord = tail.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int entryCount = Short.toUnsignedInt(eocdRecord.getShort(eocd + 10));
+        long cenSize = Integer.toUnsignedLong(eocdRecord.getInt(eocd + 12));
+        long cenOffset = Integer.toUnsignedLong(eocdRecord.getInt(eocd + 16));
+        if (entryCount == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL) {
+            return null;
+        }
+        ByteBuffer centralDirectory;
+        // the tail holds the whole central directory of most jars, a larger one needs its own range.
+        if (cenOffset >= tailStart && cenOffset - tailStart + cenSize <= tail.limit()) {
+            centralDirectory = tail.slice((int) (cenOffset - tailStart), (int) cenSize);
+        } else {
+            Request cenRequest = new Request.Builder().url(downloadUrl).header("Range", "bytes=" + cenOffset + "-" + (cenOffset + cenSize - 1)).build();
+            try (Response response = httpClient.curlWithRetry(cenRequest)) {
+                if (response.code() == 200) {
+                    return compareJarStream(response, dependency);
+                }
+                if (response.code() != 206) {
+                    return null;
+                }
+                centralDirectory = ByteBuffer.wrap(response.body().bytes());
+            }
+        }
+        Map<String, Long> remote = JarUtil.getEntryChecksums(centralDirectory, entryCount);
+        if (remote == null) {
+            return null;
+        }
+        return remote.equals(JarUtil.getEntryChecksums(dependency.path));
+    }
+
+    // "bytes 100-199/200" -> 100, -1 if it can not be read.
+    private static long rangeStart(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+        } catch (RuntimeException e) {
+            return -1;
         }
     }
 
     @SneakyThrows
     private static boolean downloadJarAndCompare(String downloadUrl, Dependency dependency, HttpClientProvider httpClient) {
+        Boolean sameEntries = compareCentralDirectory(downloadUrl, dependency, httpClient);
+        if (sameEntries != null) {
+            return sameEntries;
+        }
         try (Response response = httpClient.curlWithRetry(downloadUrl)) {
             if (!response.isSuccessful()) {
                 return false;
             }
-            Path tempZipPath = Files.createTempFile("downloaded", ".zip");
-            File tempZipFile = tempZipPath.toFile();
-            tempZipFile.deleteOnExit();
-            FileUtils.copyInputStreamToFile(response.body().byteStream(), tempZipFile);
-            return calculateJarSimilarity(tempZipPath, dependency.path) == 1;
+            return compareJarStream(response, dependency);
+        }
+    }
+
+    // hash the jar and list its entries while the bytes arrive, nothing is written to disk. the same
+    // verdict as compareCentralDirectory: the same sha1, or the same files with the same crc32s and sizes,
+    // so a repacked jar is accepted whether the server does ranges or not.
+    @SneakyThrows
+    private static boolean compareJarStream(Response response, Dependency dependency) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        Map<String, Long> remote = JarUtil.getEntryChecksums(new DigestInputStream(response.body().byteStream(), digest));
+        if (dependency.hash.equals(Sha1Key.of(digest.digest()))) {
+            return true;
         }
+        return remote.equals(JarUtil.getEntryChecksums(dependency.path));
     }
     @SneakyThrows
-    private static void searchByAvOnCentral(Dependency dependency, Connection dbConn, HttpClientProvider httpClient) {
+    static void searchByAvOnCentral(Dependency dependency, Connection dbConn, HttpClientProvider httpClient) {
         String url = "https://central.sonatype.com/solrsearch/select?q=a:" + dependency.unverifiedArtifactId + "+AND+v:"+ dependency.unverifiedVersion +"&rows=20&wt=json";
-        Response response = httpClient.curlWithRetry(url);
-        if (!response.isSuccessful()) {
-            throw new RuntimeException("central sonatype query failed: " + response.code() + " " + response.message());
+        String jsonData;
+        try (Response response = httpClient.curlWithRetry(url)) {
+            if (!response.isSuccessful()) {
+                throw new RuntimeException("central sonatype query failed: " + response.code() + " " + response.message());
+            }
+            jsonData = response.body().string();
         }
-        String jsonData = response.body().string();
-        response.close();
         ObjectMapper objectMapper = new ObjectMapper();
         JsonNode rootNode = objectMapper.readTree(jsonData);
         JsonNode docsNode = rootNode.path("response").path("docs");
-        for (JsonNode doc : docsNode) {
-            String groupdId = doc.get("g").asText();
-            String artifactId = doc.get("a").asText();
-            String version = doc.get("v").asText();
-            String downloadUrl = "https://repo1.maven.org/maven2/"+groupdId.replace('.', '/') + "/" + artifactId + "/" + version + "/" + artifactId + "-" + version + ".jar";
-            if (downloadJarAndCompare(downloadUrl, dependency, httpClient)) {
-                String repo = "https://repo1.maven.org/maven2/";
-                dependency.verify(groupdId, artifactId, version, repo);
-                return;
-            }
+        String[] gav = firstMatch(candidates(docsNode), httpClient, candidate -> {
+            String downloadUrl = CENTRAL_REPO + candidate[0].replace('.', '/') + "/" + candidate[1] + "/" + candidate[2] + "/" + candidate[1] + "-" + candidate[2] + ".jar";
+            return downloadJarAndCompare(downloadUrl, dependency, httpClient);
+        });
+        if (gav != null) {
+            dependency.verify(gav[0], gav[1], gav[2], CENTRAL_REPO);
         }
     }
 
+    private static String artifactPath(Dependency dependency, String extension) {
+        return dependency.unverifiedGroupId.replace('.', '/') + "/" + dependency.unverifiedArtifactId + "/" + dependency.unverifiedVersion + "/" + dependency.unverifiedArtifactId + "-" + dependency.unverifiedVersion + extension;
+    }
+
+    // the .sha1 next to the jar its pom.properties names, in every repo.
     @SneakyThrows
-    private static void searchByGavOnRepos(Dependency dependency, Connection dbConn, HttpClientProvider httpClient, List<String> repos) {
+    static void searchSha1OnRepos(Dependency dependency, HttpClientProvider httpClient, List<String> repos) {
+        if (!dependency.hasGAVInFile()) {
+            return;
+        }
         for (String repo : repos) {
-            String sha1Path = dependency.unverifiedGroupId.replace('.', '/') + "/" + dependency.unverifiedArtifactId + "/" + dependency.unverifiedVersion + "/" + dependency.unverifiedArtifactId + "-" + dependency.unverifiedVersion + ".jar.sha1";
-            String jarPath = dependency.unverifiedGroupId.replace('.', '/') + "/" + dependency.unverifiedArtifactId + "/" + dependency.unverifiedVersion + "/" + dependency.unverifiedArtifactId + "-" + dependency.unverifiedVersion + ".jar";
             if (!repo.endsWith("/")) {
                 repo += "/";
             }
-            try (Response response = httpClient.curlWithRetry(repo + sha1Path)) {
+            try (Response response = httpClient.curlWithRetry(repo + artifactPath(dependency, ".jar.sha1"))) {
                 // otherwise 404 or 302, just ignore.
                 if (!response.isSuccessful()) {
                     continue;
                 }
                 String body = response.body().string();
-                if (dependency.hash.equals(body)) {
+                if (dependency.hash.matches(body)) {
                     dependency.verify(dependency.unverifiedGroupId, dependency.unverifiedArtifactId, dependency.unverifiedVersion, repo);
                     return;
                 }
             }
-            if (downloadJarAndCompare(repo+jarPath, dependency, httpClient)){
+        }
+    }
+
+    // the jar itself, for repacked jars whose sha1 differs but whose files and their content are the same.
+    static void searchJarOnRepos(Dependency dependency, HttpClientProvider httpClient, List<String> repos) {
+        if (!dependency.hasGAVInFile()) {
+            return;
+        }
+        for (String repo : repos) {
+            if (!repo.endsWith("/")) {
+                repo += "/";
+            }
+            if (downloadJarAndCompare(repo + artifactPath(dependency, ".jar"), dependency, httpClient)){
                 dependency.verify(dependency.unverifiedGroupId, dependency.unverifiedArtifactId, dependency.unverifiedVersion, repo);
                 return;
             }
@@ -116,8 +323,8 @@ public class GAVQueryUtils {
     }
 
 
-    private static void searchInDb(Dependency dependency, Connection dbConn, List<String> repos, HttpClientProvider httpClient) {
-        if (getDependencyInDb(dependency, dbConn)){
+    static void searchInDb(Dependency dependency, Connection dbConn, List<String> repos, HttpClientProvider httpClient) {
+        if (dependency.hasGAVInFile() && getDependencyInDb(dependency, dbConn)){
             dependency.verify(dependency.unverifiedGroupId, dependency.unverifiedArtifactId, dependency.unverifiedVersion, dependency.repo);
             if (!repos.contains(dependency.repo) && httpClient.isLive(dependency.repo)){
                 repos.add(dependency.repo);        
@@ -125,26 +332,13 @@ public class GAVQueryUtils {
         }
     }
 
-    public static void checkGAV(Dependency dependency, Connection dbConn, HttpClientProvider httpClient, List<String> repos, List<String> privatePrefixs, List<String> publicPrefixs) {
-        if (dependency.isFqcnBelongsPrefixs(privatePrefixs)) {
-            return;
-        }
-        if (dependency.hasGAVInFile()) {
-            searchInDb(dependency, dbConn, repos, httpClient);
-        }
-        if (!dependency.isVerified()) {
-            if (dependency.hasGAVInFile()) {
-                searchByGavOnRepos(dependency, dbConn, httpClient, repos);
-            }
-        }
-        if (!dependency.isVerified()) {
-            searchByHashOnCentral(dependency, dbConn, httpClient);
-        }
-        if (!dependency.isVerified()) {
-            searchByAvOnCentral(dependency, dbConn, httpClient);
-        }
-        if (!dependency.isVerified() && dependency.isFqcnBelongsPrefixs(publicPrefixs)) {
-            dependency.verify("oicu",dependency.unverifiedArtifactId,dependency.unverifiedVersion,"");
+    // offline table imported from a maven central export or mirror, see Sha1Index.
+    static void searchInIndex(Dependency dependency, Sha1Index sha1Index) {
+        String gav = sha1Index.lookup(dependency.hash.toString());
+        if (gav != null) {
+            String[] parts = gav.split(":");
+            // no collect against repo1 here, the host using an index usually can not reach it.
+            dependency.verifyKnown(parts[0], parts[1], parts[2], CENTRAL_REPO);
         }
     }
 }
@@ -2,19 +2,30 @@ package oicu;
 
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.Thread.sleep;
 
@@ -23,6 +34,22 @@ public class HttpClientProvider {
     private final Set<OkHttpClient> httpClients = ConcurrentHashMap.newKeySet();
     // https://maven.jeecg.org/nexus/content/repositories/jeecg/ can not be accessed via 194.138.0.24
     private final Map<String, Set<OkHttpClient>> affinity = new ConcurrentHashMap<>();
+    // concurrent requests per proxy and host, held until the response is closed.
+    // this is what bounds the lookups, not the number of threads making them.
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 16;
+    private final int maxRequestsPerHost;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    // idle connections kept for reuse, for all proxies and hosts together.
+    public static final int DEFAULT_POOL_SIZE = 64;
+    // every proxy client is derived from this one and shares its connection pool and dispatcher.
+    // the pool keys connections by host and proxy, so sharing it reuses a tls connection across
+    // lookups and liveness checks without mixing proxies up. http/2 is negotiated where the server
+    // supports it, then the requests of a proxy to one host are multiplexed over a single connection.
+    private final OkHttpClient baseClient;
+    // one usage client per proxy, so isLive hands out the same clients as the liveness check.
+    private final Map<String, OkHttpClient> usageClients = new ConcurrentHashMap<>();
+    private final MetricsRegistry metrics;
+    private final TraceRecorder tracer;
     
     private static final int CHECK_CONNECT_TIMEOUT_MS = 300;
     private static final int USAGE_CONNECT_TIMEOUT_MS = 3000;
@@ -32,6 +59,48 @@ public class HttpClientProvider {
     private static final long MIN_ACCEPTABLE_BANDWIDTH_KBPS = 300; // 500 KB/s as minimum threshold
     private static final int BANDWIDTH_READ_BUFFER_SIZE = 8192; // 8 KB buffer for reading
     private static final int BANDWIDTH_TEST_DURATION_MS = 5000; // Test for 5 seconds max
+
+    // calls made by threads running under withCallGroup are registered in the group,
+    // so another thread can abort all of them at once, e.g. when a concurrent candidate already matched.
+    public static class CallGroup {
+        private final Set<Call> calls = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled = false;
+
+        private void add(Call call) {
+            calls.add(call);
+            if (cancelled) {
+                call.cancel();
+            }
+        }
+
+        private void remove(Call call) {
+            calls.remove(call);
+        }
+
+        public void cancel() {
+            cancelled = true;
+            for (Call call : calls) {
+                call.cancel();
+            }
+        }
+    }
+    private final ThreadLocal<CallGroup> callGroup = new ThreadLocal<>();
+
+    // task bound to group, for running on another thread. it is traced on a lane of the creating
+    // thread's track, as several of these usually run at once for the same dependency.
+    public <T> Callable<T> inCallGroup(CallGroup group, Callable<T> task) {
+        int track = tracer.currentTrack();
+        return () -> {
+            callGroup.set(group);
+            int lane = tracer.acquireLane(track);
+            try {
+                return tracer.onTrack(lane, task);
+            } finally {
+                tracer.releaseLane(track, lane);
+                callGroup.remove();
+            }
+        };
+    }
     
     private Set<OkHttpClient> parseProxies(String proxyStrings){
         Set<OkHttpClient> proxyClients = new HashSet<>();
@@ -69,7 +138,7 @@ public class HttpClientProvider {
     }
     
     private OkHttpClient createCheckClient(Proxy proxy) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+        OkHttpClient.Builder builder = baseClient.newBuilder()
             .connectTimeout(CHECK_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
         if (proxy != null) {
             builder.proxy(proxy);
@@ -78,13 +147,15 @@ public class HttpClientProvider {
     }
     
     private OkHttpClient createUsageClient(Proxy proxy) {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder()
-            .connectTimeout(USAGE_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-            .readTimeout(USAGE_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        if (proxy != null) {
-            builder.proxy(proxy);
-        }
-        return builder.build();
+        return usageClients.computeIfAbsent(proxy == null ? "direct" : proxy.address().toString(), k -> {
+            OkHttpClient.Builder builder = baseClient.newBuilder()
+                .connectTimeout(USAGE_CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(USAGE_READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            if (proxy != null) {
+                builder.proxy(proxy);
+            }
+            return builder.build();
+        });
     }
     
     @SneakyThrows
@@ -173,6 +244,24 @@ public class HttpClientProvider {
     }
     
     public HttpClientProvider(String proxyString) {
+        this(proxyString, DEFAULT_MAX_REQUESTS_PER_HOST, DEFAULT_POOL_SIZE, new MetricsRegistry(), new TraceRecorder(false));
+    }
+
+    public HttpClientProvider(String proxyString, int maxRequestsPerHost, int poolSize, MetricsRegistry metrics, TraceRecorder tracer) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        ConnectionPool connectionPool = new ConnectionPool(poolSize, 5, TimeUnit.MINUTES);
+        // the dispatcher only schedules async calls, the host permits bound the sync ones; same limit for both.
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        baseClient = new OkHttpClient.Builder()
+            .connectionPool(connectionPool)
+            .dispatcher(dispatcher)
+            .protocols(List.of(Protocol.HTTP_2, Protocol.HTTP_1_1))
+            .build();
+        metrics.gauge("d2m_http_pool_connections", connectionPool::connectionCount);
+        metrics.gauge("d2m_http_pool_idle_connections", connectionPool::idleConnectionCount);
         Set<OkHttpClient> parsedClients = parseProxies(proxyString);
         // Use bandwidth checking for initial proxy setup
         httpClients.addAll(checkClientsLiveness(parsedClients, "https://repo1.maven.org/maven2/", true));
@@ -199,6 +288,12 @@ public class HttpClientProvider {
         Request request = new Request.Builder()
                 .url(url)
                 .build();
+        return curlWithRetry(request);
+    }
+
+    @SneakyThrows
+    public Response curlWithRetry(Request request) {
+        String url = request.url().toString();
         int retry = 0;
         while (true) {
             OkHttpClient httpClient = getAffineHttpClient(url);
@@ -207,15 +302,90 @@ public class HttpClientProvider {
                     throw new RuntimeException(url + " timeout 5 times.");
                 }
                 retry += 1;
-                Response response = httpClient.newCall(request).execute(); 
-                return response;
+                String host = request.url().host();
+                String proxy = proxyName(httpClient);
+                if (retry > 1) {
+                    metrics.counter("d2m_http_retries_total", "host", host, "proxy", proxy).increment();
+                }
+                Semaphore permits = hostPermits(httpClient, request);
+                long waitStart = System.nanoTime();
+                permits.acquire();
+                long start = System.nanoTime();
+                metrics.histogram("d2m_http_permit_wait_seconds", "host", host).observeNanos(start - waitStart);
+                if (start - waitStart > TimeUnit.MILLISECONDS.toNanos(1)) {
+                    tracer.span(tracer.currentTrack(), "waiting for " + host + " permit", "http", waitStart, start, "proxy", proxy);
+                }
+                metrics.counter("d2m_http_requests_total", "host", host, "proxy", proxy).increment();
+                try {
+                    Response response = execute(httpClient.newCall(request));
+                    // time to the response headers, the body is read by the caller.
+                    metrics.histogram("d2m_http_seconds", "host", host).observeNanos(System.nanoTime() - start);
+                    metrics.counter("d2m_http_responses_total", "host", host, "protocol", response.protocol().toString()).increment();
+                    tracer.span(request.method() + " " + host, "http", start, "url", url, "proxy", proxy, "attempt", retry, "code", response.code(), "protocol", response.protocol());
+                    return releaseOnClose(response, permits);
+                } catch (IOException | RuntimeException e) {
+                    permits.release();
+                    metrics.counter("d2m_http_errors_total", "host", host, "proxy", proxy).increment();
+                    tracer.span(request.method() + " " + host, "http", start, "url", url, "proxy", proxy, "attempt", retry, "error", e.toString());
+                    throw e;
+                }
             } catch (IOException e) {
+                CallGroup group = callGroup.get();
+                if (group != null && group.cancelled) {
+                    throw new CancellationException(url + " cancelled.");
+                }
                 // timeout or connection refused
                 sleep(2000);
             }
         }
     }
 
+    private Response execute(Call call) throws IOException {
+        CallGroup group = callGroup.get();
+        if (group == null) {
+            return call.execute();
+        }
+        group.add(call);
+        try {
+            return call.execute();
+        } finally {
+            group.remove(call);
+        }
+    }
+
+    private static String proxyName(OkHttpClient httpClient) {
+        Proxy proxy = httpClient.proxy();
+        return proxy == null ? "direct" : proxy.address().toString();
+    }
+
+    private Semaphore hostPermits(OkHttpClient httpClient, Request request) {
+        String key = proxyName(httpClient) + "->" + request.url().host();
+        return hostPermits.computeIfAbsent(key, k -> new Semaphore(maxRequestsPerHost, true));
+    }
+
+    // the permit is given back when the body is closed, by response.close() or by reading it with string().
+    private static Response releaseOnClose(Response response, Semaphore permits) {
+        AtomicBoolean released = new AtomicBoolean(false);
+        ResponseBody body = response.body();
+        if (body == null) {
+            permits.release();
+            return response;
+        }
+        BufferedSource source = Okio.buffer(new ForwardingSource(body.source()) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (released.compareAndSet(false, true)) {
+                        permits.release();
+                    }
+                }
+            }
+        });
+        return response.newBuilder().body(ResponseBody.create(source, body.contentType(), body.contentLength())).build();
+    }
+
     public boolean isLive(String url) {
         if (affinity.containsKey(url)) {
             return !affinity.get(url).isEmpty();
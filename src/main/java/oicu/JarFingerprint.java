@@ -0,0 +1,222 @@
+package oicu;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// everything Dependency needs from a jar, read in one pass:
+// the jar is mapped once, hashed from the mapping, and the zip central directory is parsed from the same mapping.
+// falls back to ZipFile for zip64, jars too big to map, or a central directory or entry that does not read.
+public class JarFingerprint {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_MIN_SIZE = 22;
+    private static final int CEN_HEADER_SIZE = 46;
+    private static final int LOC_HEADER_SIZE = 30;
+
+    @Getter
+    private Sha1Key sha1;
+    // first .class entry in central directory order, null if the jar has no class.
+    @Getter
+    private String firstClass;
+    // packages of all class entries, like com/example/
+    @Getter
+    private final Set<String> packages = new HashSet<>();
+    // first META-INF/maven/**/pom.properties, null if none.
+    @Getter
+    private Properties pomProperties;
+
+    private JarFingerprint() {
+    }
+
+    @SneakyThrows
+    public static JarFingerprint of(Path path) {
+        JarFingerprint fingerprint = new JarFingerprint();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size <= Integer.MAX_VALUE) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                fingerprint.sha1 = sha1(buffer.duplicate());
+                try {
+                    if (fingerprint.parseCentralDirectory(buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN))) {
+                        return fingerprint;
+                    }
+                } catch (IOException | IndexOutOfBoundsException e) {
+                    // truncated or corrupt, ZipFile decides what can still be read.
+                }
+            } else {
+                fingerprint.sha1 = sha1(channel);
+            }
+        }
+        fingerprint.packages.clear();
+        fingerprint.firstClass = null;
+        fingerprint.pomProperties = null;
+        fingerprint.scanWithZipFile(path);
+        return fingerprint;
+    }
+
+    @SneakyThrows
+    private static Sha1Key sha1(ByteBuffer buffer) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        digest.update(buffer);
+        return Sha1Key.of(digest.digest());
+    }
+
+    @SneakyThrows
+    private static Sha1Key sha1(FileChannel channel) {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        channel.position(0);
+        while (channel.read(buffer) != -1) {
+            buffer.flip();
+            digest.update(buffer);
+            buffer.clear();
+        }
+        return Sha1Key.of(digest.digest());
+    }
+
+    // false if this is not a plain zip we can parse, the caller falls back to ZipFile.
+    private boolean parseCentralDirectory(ByteBuffer buffer) throws IOException {
+        int eocd = findEndOfCentralDirectory(buffer);
+        if (eocd < 0) {
+            return false;
+        }
+        int entryCount = Short.toUnsignedInt(buffer.getShort(eocd + 10));
+        long cenSize = Integer.toUnsignedLong(buffer.getInt(eocd + 12));
+        long cenOffset = Integer.toUnsignedLong(buffer.getInt(eocd + 16));
+        if (entryCount == 0xFFFF || cenSize == 0xFFFFFFFFL || cenOffset == 0xFFFFFFFFL) {
+            // zip64
+            return false;
+        }
+        // self-extracting or prefixed jars: the central directory sits right before the eocd record.
+        long shift = eocd - cenSize - cenOffset;
+        if (shift < 0) {
+            return false;
+        }
+        int position = (int) (cenOffset + shift);
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CEN_HEADER_SIZE > eocd || buffer.getInt(position) != CEN_SIGNATURE) {
+                return false;
+            }
+            int method = Short.toUnsignedInt(buffer.getShort(position + 10));
+            long compressedSize = Integer.toUnsignedLong(buffer.getInt(position + 20));
+            long uncompressedSize = Integer.toUnsignedLong(buffer.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+            long localOffset = Integer.toUnsignedLong(buffer.getInt(position + 42)) + shift;
+            byte[] nameBytes = new byte[nameLength];
+            buffer.get(position + CEN_HEADER_SIZE, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            if (name.endsWith(".class")) {
+                addClass(name);
+            } else if (pomProperties == null && isPomProperties(name)) {
+                pomProperties = loadProperties(new ByteArrayInputStream(readLocalEntry(buffer, localOffset, method, compressedSize, uncompressedSize)));
+            }
+            position += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return true;
+    }
+
+    private static int findEndOfCentralDirectory(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        // the record is at the end, followed by at most a 64k comment.
+        int lowest = Math.max(0, limit - EOCD_MIN_SIZE - 0xFFFF);
+        for (int position = limit - EOCD_MIN_SIZE; position >= lowest; position--) {
+            if (buffer.getInt(position) == EOCD_SIGNATURE) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readLocalEntry(ByteBuffer buffer, long localOffset, int method, long compressedSize, long uncompressedSize) throws IOException {
+        int position = (int) localOffset;
+        if (buffer.getInt(position) != LOC_SIGNATURE) {
+            throw new IOException("bad local header at " + localOffset);
+        }
+        int nameLength = Short.toUnsignedInt(buffer.getShort(position + 26));
+        int extraLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+        int dataOffset = position + LOC_HEADER_SIZE + nameLength + extraLength;
+        byte[] compressed = new byte[(int) compressedSize];
+        buffer.get(dataOffset, compressed);
+        if (method == ZipEntry.STORED) {
+            return compressed;
+        }
+        if (method != ZipEntry.DEFLATED) {
+            throw new IOException("unsupported zip method " + method);
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[(int) uncompressedSize];
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, n, data.length - n);
+                // all input used up before the end of the entry, inflating again would return 0 forever.
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("truncated zip entry at " + localOffset);
+                }
+                n += inflated;
+            }
+            return data;
+        } catch (java.util.zip.DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void scanWithZipFile(Path path) throws IOException {
+        try (ZipFile zipFile = new ZipFile(path.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.endsWith(".class")) {
+                    addClass(name);
+                } else if (pomProperties == null && isPomProperties(name)) {
+                    try (InputStream is = zipFile.getInputStream(entry)) {
+                        pomProperties = loadProperties(is);
+                    } catch (IOException e) {
+                        // a corrupt pom.properties, the gav then comes from the file name alone.
+                        pomProperties = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private void addClass(String name) {
+        if (firstClass == null) {
+            firstClass = name;
+        }
+        packages.add(name.substring(0, name.lastIndexOf('/') + 1));
+    }
+
+    private static boolean isPomProperties(String name) {
+        return name.startsWith("META-INF/maven/") && name.endsWith("/pom.properties");
+    }
+
+    private static Properties loadProperties(InputStream is) throws IOException {
+        Properties properties = new Properties();
+        properties.load(is);
+        return properties;
+    }
+}
@@ -1,14 +1,31 @@
 package oicu;
 import lombok.SneakyThrows;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.zip.CRC32;
 
 public class JarUtil {
+    static final int EOCD_SIGNATURE = 0x06054b50;
+    static final int EOCD_MIN_SIZE = 22;
+    // eocd record plus the longest possible zip comment.
+    static final int EOCD_MAX_SIZE = EOCD_MIN_SIZE + 0xFFFF;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int CEN_HEADER_SIZE = 46;
+
     public static  float calculateJarSimilarity(Path zipFile1, Path zipFile2) {
-        Set<String> sources1 = getSources(zipFile1);
-        Set<String> sources2 = getSources(zipFile2);
+        return calculateJarSimilarity(getSources(zipFile1), getSources(zipFile2));
+    }
+
+    public static float calculateJarSimilarity(Set<String> sources1, Set<String> sources2) {
         Set<String> intersection = new HashSet<>(sources1);
         intersection.retainAll(sources2);
         Set<String> union = new HashSet<>(sources1);
@@ -17,7 +34,7 @@ public class JarUtil {
     }
 
     @SneakyThrows
-    private static Set<String> getSources(Path zipFilePath) {
+    public static Set<String> getSources(Path zipFilePath) {
         Set<String> sources = new HashSet<>();
         try (ZipFile zipFile = new ZipFile(zipFilePath.toFile())) {
             Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
@@ -34,4 +51,93 @@ public class JarUtil {
         }
         return sources;
     }
-}
\ No newline at end of file
+
+    // name -> crc32 and size of every file getSources looks at.
+    // two jars with equal maps hold the same files with the same content, whatever their zip layout.
+    @SneakyThrows
+    public static Map<String, Long> getEntryChecksums(Path zipFilePath) {
+        Map<String, Long> checksums = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(zipFilePath.toFile())) {
+            Enumeration<ZipArchiveEntry> entries = zipFile.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                checksums.put(entry.getName(), checksum(entry.getCrc(), entry.getSize()));
+            }
+        }
+        return checksums;
+    }
+
+    // same as getEntryChecksums(Path), from a stream of the zip. the crc and size are computed from the
+    // inflated bytes, a streamed entry may only carry them in a data descriptor. reads the stream to its end.
+    @SneakyThrows
+    public static Map<String, Long> getEntryChecksums(InputStream zipStream) {
+        Map<String, Long> checksums = new HashMap<>();
+        byte[] buffer = new byte[8192];
+        try (ZipArchiveInputStream zis = new ZipArchiveInputStream(zipStream, "UTF-8", true, true)) {
+            ZipArchiveEntry entry;
+            while ((entry = zis.getNextZipEntry()) != null) {
+                if (entry.isDirectory() || entry.getName().startsWith("META-INF/")) {
+                    continue;
+                }
+                CRC32 crc = new CRC32();
+                long size = 0;
+                int read;
+                while ((read = zis.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    size += read;
+                }
+                checksums.put(entry.getName(), checksum(crc.getValue(), size));
+            }
+            // the central directory is not read by ZipArchiveInputStream, drain it for the caller's digest.
+            IOUtils.consume(zipStream);
+        }
+        return checksums;
+    }
+
+    private static long checksum(long crc, long size) {
+        return (crc << 32) ^ size;
+    }
+
+    // position of the end of central directory record in the tail of a zip, -1 if absent.
+    public static int findEndOfCentralDirectory(ByteBuffer tail) {
+        ByteBuffer buffer = tail.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int lowest = Math.max(0, buffer.limit() - EOCD_MAX_SIZE);
+        for (int position = buffer.limit() - EOCD_MIN_SIZE; position >= lowest; position--) {
+            if (buffer.getInt(position) == EOCD_SIGNATURE) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    // same as getEntryChecksums, from the raw central directory bytes. null if they do not parse.
+    public static Map<String, Long> getEntryChecksums(ByteBuffer centralDirectory, int entryCount) {
+        ByteBuffer buffer = centralDirectory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        Map<String, Long> checksums = new HashMap<>();
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CEN_HEADER_SIZE > buffer.limit() || buffer.getInt(position) != CEN_SIGNATURE) {
+                return null;
+            }
+            long crc = Integer.toUnsignedLong(buffer.getInt(position + 16));
+            long size = Integer.toUnsignedLong(buffer.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+            if (position + CEN_HEADER_SIZE + nameLength > buffer.limit()) {
+                return null;
+            }
+            byte[] nameBytes = new byte[nameLength];
+            buffer.get(position + CEN_HEADER_SIZE, nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            if (!name.endsWith("/") && !name.startsWith("META-INF/")) {
+                checksums.put(name, checksum(crc, size));
+            }
+            position += CEN_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return checksums;
+    }
+}
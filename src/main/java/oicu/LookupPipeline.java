@@ -0,0 +1,327 @@
+package oicu;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import static oicu.GAVQueryUtils.*;
+
+// identification of the dependencies in the box, as a chain of lookups from cheap to expensive.
+// every stage has its own executor queue, concurrency limit and counters; a dependency moves on to the
+// next stage only while it is not verified. the stages downloading whole jars are gated: they start only
+// once ingestion is over and no dependency is left in the stages before them, so the cheap stages
+// clear what they can first and the downloads work on the rest. a dependency reaching a closed gate is
+// held in a queue, not in a thread of the stage, and handed to the stage when the gate opens.
+public class LookupPipeline {
+    // how often a stage runs for the same dependency when it comes back, e.g. after a repo was added.
+    enum Repeat {
+        // what it asks can not change during a run.
+        ONCE,
+        // once for every repo, the lookup gets only the repos not checked yet.
+        PER_REPO,
+        // cheap and its answer may change, like the fuzzy index learning from newly verified jars.
+        ALWAYS
+    }
+
+    public static class Stage {
+        @Getter
+        private final String name;
+        private final boolean gated;
+        private final Repeat repeat;
+        private final BiConsumer<Dependency, List<String>> lookup;
+        private final ExecutorService executor;
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        private final MetricsRegistry.Histogram latency;
+        private final LongAdder matched;
+        private final LongAdder missed;
+        private final LongAdder skipped;
+        private final LongAdder errors;
+
+        private Stage(String name, boolean gated, Repeat repeat, int limit, BiConsumer<Dependency, List<String>> lookup, MetricsRegistry metrics) {
+            this.name = name;
+            this.gated = gated;
+            this.repeat = repeat;
+            this.lookup = lookup;
+            latency = metrics.histogram("d2m_stage_seconds", "stage", name);
+            matched = metrics.counter("d2m_stage_lookups_total", "stage", name, "result", "matched");
+            missed = metrics.counter("d2m_stage_lookups_total", "stage", name, "result", "missed");
+            skipped = metrics.counter("d2m_stage_lookups_total", "stage", name, "result", "skipped");
+            errors = metrics.counter("d2m_stage_lookups_total", "stage", name, "result", "error");
+            metrics.gauge("d2m_stage_queue_depth", queued::get, "stage", name);
+            metrics.gauge("d2m_stage_running", running::get, "stage", name);
+            // limit 0 is one thread per dependency, bounded by the per host limits of the http client only.
+            this.executor = limit > 0 ? Executors.newFixedThreadPool(limit, namedThreads("lookup-" + name)) : newThreadPerTaskExecutor();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-13s %6d in %6d matched %6d skipped %4d errors %8.1f ms avg", name, latency.count(), matched.sum(), skipped.sum(), errors.sum(),
+                    latency.meanMillis());
+        }
+    }
+
+    private final DependenciesBox dependenciesBox;
+    private final Set<Dependency> publicDependencies;
+    private final PrefixTrie privatePrefixs;
+    private final PrefixTrie publicPrefixs;
+    private final FuzzyIndex fuzzyIndex;
+    private final TransitiveVerifier transitiveVerifier;
+    private final List<String> repos;
+    private final MetricsRegistry metrics;
+    private final TraceRecorder tracer;
+    @Getter
+    private final List<Stage> stages = new ArrayList<>();
+    // taken from the box and not settled yet.
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // queued or running in a stage before the first gated one.
+    private final AtomicInteger beforeGate = new AtomicInteger();
+    private final ReentrantLock gateLock = new ReentrantLock();
+    // tasks of gated stages submitted while the gate was closed.
+    private final Queue<Runnable> heldAtGate = new ArrayDeque<>();
+    private int firstGated = -1;
+
+    public LookupPipeline(DependenciesBox dependenciesBox, Set<Dependency> publicDependencies, List<String> repos, Connection dbConn, HttpClientProvider httpClient,
+                          PrefixTrie privatePrefixs, PrefixTrie publicPrefixs, Sha1Index sha1Index, CentralHashBatcher hashBatcher, FuzzyIndex fuzzyIndex,
+                          TransitiveVerifier transitiveVerifier, int defaultLimit, Map<String, Integer> limits, MetricsRegistry metrics, TraceRecorder tracer) {
+        this.dependenciesBox = dependenciesBox;
+        this.publicDependencies = publicDependencies;
+        this.privatePrefixs = privatePrefixs;
+        this.publicPrefixs = publicPrefixs;
+        this.fuzzyIndex = fuzzyIndex;
+        this.transitiveVerifier = transitiveVerifier;
+        this.repos = repos;
+        this.metrics = metrics;
+        this.tracer = tracer;
+        metrics.gauge("d2m_pipeline_in_flight", inFlight::get);
+        addStage("db", false, Repeat.ONCE, defaultLimit, limits, (dependency, unused) -> {
+            searchInDb(dependency, dbConn, repos, httpClient);
+            if (!dependency.isVerified() && sha1Index != null) {
+                searchInIndex(dependency, sha1Index);
+            }
+        });
+        addStage("repo-sha1", false, Repeat.PER_REPO, defaultLimit, limits, (dependency, unchecked) -> searchSha1OnRepos(dependency, httpClient, unchecked));
+        addStage("central-hash", false, Repeat.ONCE, defaultLimit, limits, (dependency, unused) -> searchByHashOnCentral(dependency, dbConn, httpClient, hashBatcher));
+        addStage("repo-jar", true, Repeat.PER_REPO, defaultLimit, limits, (dependency, unchecked) -> searchJarOnRepos(dependency, httpClient, unchecked));
+        addStage("central-av", true, Repeat.ONCE, defaultLimit, limits, (dependency, unused) -> searchByAvOnCentral(dependency, dbConn, httpClient));
+        if (fuzzyIndex != null) {
+            addStage("fuzzy", false, Repeat.ALWAYS, defaultLimit, limits, (dependency, unused) -> fuzzyIndex.match(dependency, repos, httpClient));
+        }
+    }
+
+    private void addStage(String name, boolean gated, Repeat repeat, int defaultLimit, Map<String, Integer> limits, BiConsumer<Dependency, List<String>> lookup) {
+        if (gated && firstGated < 0) {
+            firstGated = stages.size();
+        }
+        stages.add(new Stage(name, gated, repeat, limits.getOrDefault(name, defaultLimit), lookup, metrics));
+    }
+
+    // feeds every dependency the box releases into the first stage, returns once the box is done.
+    @SneakyThrows
+    public void run() {
+        Thread ingestionWatcher = new Thread(this::openGateAfterIngestion, "gate-ingestion");
+        ingestionWatcher.setDaemon(true);
+        ingestionWatcher.start();
+        Dependency dependency;
+        while ((dependency = dependenciesBox.takeProcessing()) != null) {
+            inFlight.incrementAndGet();
+            // if not class file in the dep, drop it
+            if (dependency.getClassPath() == null) {
+                settle();
+                continue;
+            }
+            transitiveVerifier.register(dependency);
+            submit(0, dependency);
+        }
+        for (Stage stage : stages) {
+            stage.executor.shutdown();
+        }
+        for (Stage stage : stages) {
+            stage.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public void printMetrics() {
+        for (Stage stage : stages) {
+            System.out.println(stage);
+        }
+    }
+
+    private void submit(int index, Dependency dependency) {
+        Stage stage = stages.get(index);
+        if (index < firstGated) {
+            beforeGate.incrementAndGet();
+        }
+        stage.queued.incrementAndGet();
+        long queuedAt = tracer.now();
+        int track = tracer.track(dependency, dependency.path.getFileName().toString());
+        Runnable task = () -> tracer.onTrack(track, () -> runStage(index, dependency, queuedAt));
+        if (stage.gated) {
+            gateLock.lock();
+            try {
+                if (!isGateClear()) {
+                    heldAtGate.add(() -> stage.executor.execute(task));
+                    return;
+                }
+            } finally {
+                gateLock.unlock();
+            }
+        }
+        stage.executor.execute(task);
+    }
+
+    @SneakyThrows
+    private void runStage(int index, Dependency dependency, long queuedAt) {
+        Stage stage = stages.get(index);
+        stage.queued.decrementAndGet();
+        stage.running.incrementAndGet();
+        long start = System.nanoTime();
+        tracer.span(tracer.currentTrack(), "queued for " + stage.name, "queue", queuedAt, start);
+        String result = "skipped";
+        Error fatal = null;
+        try {
+            // already verified by TransitiveVerifier, or a private prefix was added since it entered.
+            if (!dependency.isVerified() && !dependency.isFqcnBelongsPrefixs(privatePrefixs)) {
+                List<String> unchecked = stage.repeat == Repeat.PER_REPO ? dependency.uncheckedRepos(stage.name, repos) : List.of();
+                boolean checked = switch (stage.repeat) {
+                    case ONCE -> dependency.isChecked(stage.name);
+                    case PER_REPO -> unchecked.isEmpty();
+                    case ALWAYS -> false;
+                };
+                if (checked) {
+                    stage.skipped.increment();
+                } else {
+                    stage.lookup.accept(dependency, unchecked);
+                    result = dependency.isVerified() ? "matched" : "missed";
+                    (dependency.isVerified() ? stage.matched : stage.missed).increment();
+                    stage.latency.observeNanos(System.nanoTime() - start);
+                    // a lookup that threw is not marked, it runs again if the dependency comes back.
+                    if (stage.repeat == Repeat.PER_REPO) {
+                        dependency.markChecked(stage.name, unchecked);
+                    } else {
+                        dependency.markChecked(stage.name);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            // the lookups are @SneakyThrows, an IOException of a body read gets here as it is.
+            // whatever it is, the dependency is still routed, or the box would never be done.
+            // not printed, it would interleave with the ask prompt: counted and kept on the stage span.
+            if (e instanceof Error error) {
+                fatal = error;
+            }
+            stage.errors.increment();
+            stage.latency.observeNanos(System.nanoTime() - start);
+            result = "error: " + e;
+        } finally {
+            stage.running.decrementAndGet();
+        }
+        tracer.span(stage.name, "stage", start, "result", result);
+        route(index, dependency);
+        if (index < firstGated && beforeGate.decrementAndGet() == 0) {
+            openGate();
+        }
+        if (fatal != null) {
+            throw fatal;
+        }
+    }
+
+    // next stage, or settle: verified ones are public, the rest goes to ask.
+    private void route(int index, Dependency dependency) {
+        if (!dependency.isVerified() && !dependency.isFqcnBelongsPrefixs(privatePrefixs)) {
+            if (index + 1 < stages.size()) {
+                submit(index + 1, dependency);
+                return;
+            }
+            if (dependency.isFqcnBelongsPrefixs(publicPrefixs)) {
+                dependency.verify("oicu", dependency.unverifiedArtifactId, dependency.unverifiedVersion, "");
+            }
+        }
+        // out of TransitiveVerifier's reach from here, it can not turn verified once it is on the ask queue.
+        if (transitiveVerifier.withdraw(dependency)) {
+            if (fuzzyIndex != null) {
+                fuzzyIndex.learn(dependency);
+            }
+            transitiveVerifier.expand(dependency);
+            publicDependencies.add(dependency);
+        } else {
+            dependenciesBox.addask(dependency);
+        }
+        settle();
+    }
+
+    private void settle() {
+        inFlight.decrementAndGet();
+        dependenciesBox.settleOneDependency();
+        // a dependency without classes is settled by run without passing a stage, and may have been
+        // the last one in processing, so the gate is checked here too.
+        if (beforeGate.get() == 0) {
+            openGate();
+        }
+    }
+
+    private boolean isGateClear() {
+        return dependenciesBox.isIngestionDone() && beforeGate.get() == 0 && dependenciesBox.processingSize() == 0;
+    }
+
+    // hands the held tasks to their stages, if nothing is left before the gate.
+    private void openGate() {
+        gateLock.lock();
+        try {
+            if (!isGateClear()) {
+                return;
+            }
+            Runnable held;
+            while ((held = heldAtGate.poll()) != null) {
+                held.run();
+            }
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    // the last jar ingested, or skipped, may come after everything before the gate was done.
+    @SneakyThrows
+    private void openGateAfterIngestion() {
+        dependenciesBox.awaitIngestion();
+        openGate();
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.incrementAndGet());
+    }
+
+    static boolean hasVirtualThreads() {
+        return Runtime.version().feature() >= 21;
+    }
+
+    // one virtual thread per task on java 21, the build targets 17 so it is looked up.
+    // before that a cached pool, one platform thread per running task.
+    @SneakyThrows
+    static ExecutorService newThreadPerTaskExecutor() {
+        if (!hasVirtualThreads()) {
+            return Executors.newCachedThreadPool();
+        }
+        return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    }
+}
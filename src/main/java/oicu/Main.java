@@ -17,12 +17,15 @@ import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.Thread.sleep;
 import static oicu.AssertUtils.assertion;
 import static oicu.DatabaseUtils.checkDatabase;
 import static oicu.DatabaseUtils.createDbConnection;
+import static oicu.VineflowerUtils.decompileBootClasses;
 import static oicu.VineflowerUtils.decompileJar;
 import static oicu.FileSystemUtils.*;
 import static oicu.MavenUtils.*;
@@ -44,30 +47,79 @@ public class Main {
         Path dstFolder = Path.of(cmd.getOptionValue("output"));
         Path databaseFile = Path.of(cmd.getOptionValue("database"));
         String httpProxy = cmd.getOptionValue("proxy");
-        int threadCount = Integer.parseInt(cmd.getOptionValue("threads"));
+        boolean virtualThreads = cmd.hasOption("virtual-threads");
+        int threadCount = virtualThreads ? 0 : Integer.parseInt(cmd.getOptionValue("threads"));
+        Map<String, Integer> stageLimits = new HashMap<>();
+        for (String limit : cmd.getOptionValue("stage-limits", "").split(",")) {
+            if (!limit.isEmpty()) {
+                String[] parts = limit.split("=");
+                stageLimits.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        if (virtualThreads && !LookupPipeline.hasVirtualThreads()) {
+            System.out.println("virtual threads need java 21, running one platform thread per dependency");
+        }
+        if (virtualThreads) {
+            GAVQueryUtils.useVirtualThreads();
+        }
+        int hostLimit = Integer.parseInt(cmd.getOptionValue("host-limit", String.valueOf(HttpClientProvider.DEFAULT_MAX_REQUESTS_PER_HOST)));
+        int poolSize = Integer.parseInt(cmd.getOptionValue("pool-size", String.valueOf(HttpClientProvider.DEFAULT_POOL_SIZE)));
+        boolean classesOnly = cmd.hasOption("classes-only");
+        int decompileThreads = Integer.parseInt(cmd.getOptionValue("decompile-threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        String decompileCacheFolder = cmd.getOptionValue("decompile-cache");
+        String sha1IndexFile = cmd.getOptionValue("index");
+        String rulesFile = cmd.getOptionValue("rules");
+        Path traceFile = cmd.hasOption("trace") ? Path.of(cmd.getOptionValue("trace")) : null;
+        Path metricsFile = cmd.hasOption("metrics") ? Path.of(cmd.getOptionValue("metrics")) : null;
+        String fuzzyThreshold = cmd.getOptionValue("fuzzy-threshold");
+        Path localRepository = Path.of(cmd.getOptionValue("local-repo", Path.of(System.getProperty("user.home"), ".m2", "repository").toString()));
+        long decompileMemoryMb = Long.parseLong(cmd.getOptionValue("decompile-memory", String.valueOf(Runtime.getRuntime().maxMemory() * 3 / 4 / (1024 * 1024))));
         Path decompileFolder = dstFolder.resolve("decompile");
         Path privateDependenciesFolder = dstFolder.resolve("private_dependencies");
         Path recompileFolder = dstFolder.resolve("recompile");
 
         try(Connection dbConn = createDbConnection(databaseFile)) {
             checkDatabase(dbConn);
+            MetricsRegistry metrics = new MetricsRegistry();
+            TraceRecorder tracer = new TraceRecorder(traceFile != null);
+            DecompileCache decompileCache = decompileCacheFolder == null ? null : new DecompileCache(Path.of(decompileCacheFolder), VineflowerUtils.DECOMPILE_OPTIONS, metrics);
             checkDstFolderExists(dstFolder);
             create_folders(new Path[]{dstFolder, decompileFolder, privateDependenciesFolder, recompileFolder});
-            decompileJar(jarFile, decompileFolder);
+            // read before the long decompile so a broken rules file fails right away.
+            ClassificationPolicy policy = rulesFile == null ? null : ClassificationPolicy.load(Path.of(rulesFile), dstFolder.resolve("decisions.tsv"));
+            if (classesOnly) {
+                decompileBootClasses(jarFile, decompileFolder, decompileCache);
+            } else {
+                decompileJar(jarFile, decompileFolder, decompileCache);
+            }
             printClassName(decompileFolder);
             check_spring_boot_jar(decompileFolder);
             create_recompile_folder_structure(recompileFolder);
             copy_src(decompileFolder.resolve("BOOT-INF/classes"), recompileFolder);
-            HttpClientProvider httpClient = new HttpClientProvider(httpProxy);
+            HttpClientProvider httpClient = new HttpClientProvider(httpProxy, hostLimit, poolSize, metrics, tracer);
+            Sha1Index sha1Index = sha1IndexFile == null ? null : new Sha1Index(Path.of(sha1IndexFile));
+            CentralHashBatcher hashBatcher = new CentralHashBatcher(httpClient, metrics, tracer);
+            ResolverService resolver = new ResolverService(localRepository, metrics, tracer);
+            TransitiveVerifier transitiveVerifier = new TransitiveVerifier(resolver, httpClient);
+            FuzzyIndex fuzzyIndex = fuzzyThreshold == null ? null : new FuzzyIndex(dbConn, Double.parseDouble(fuzzyThreshold), tracer);
 
          
-            Set<Dependency> publicDependencies = ConcurrentHashMap.newKeySet();
-            Set<Dependency> privateDependencies = new HashSet<>();
+            Set<Dependency> publicDependencies = Collections.synchronizedSet(new DependencySet());
+            Set<Dependency> privateDependencies = new DependencySet();
             DependenciesBox dependenciesBox = new DependenciesBox();
             List<String> repos = new CopyOnWriteArrayList<>();
-            List<String> privatePrefixs = new CopyOnWriteArrayList<>();
-            List<String> publicPrefixs = new CopyOnWriteArrayList<>();
+            PrefixTrie privatePrefixs = new PrefixTrie();
+            PrefixTrie publicPrefixs = new PrefixTrie();
             repos.add("https://repo1.maven.org/maven2/");
+            if (policy != null) {
+                policy.getPrivatePrefixes().forEach(privatePrefixs::add);
+                policy.getPublicPrefixes().forEach(publicPrefixs::add);
+                for (String repo : policy.getRepos()) {
+                    if (httpClient.isLive(repo)) {
+                        repos.add(repo);
+                    }
+                }
+            }
             
             try (Reader fileReader = new FileReader(get_one_pom_path(decompileFolder))) {
                 MavenXpp3Reader reader = new MavenXpp3Reader();
@@ -84,36 +136,61 @@ public class Main {
             
             AtomicBoolean stdio = new AtomicBoolean(false);
 
+            List<Path> jars = new ArrayList<>();
             try (DirectoryStream<Path> stream = Files.newDirectoryStream(decompileFolder.resolve("BOOT-INF/lib"))) {
                 for (Path entry : stream) {
                     assertion(entry.toString().endsWith(".jar"), "file under /BOOT-INF/lib is not .jar");
                     if (Files.isRegularFile(entry)) {
-                        dependenciesBox.addprocessing(new Dependency(entry, dbConn));
+                        jars.add(entry);
                     }
                 }
             }
-            Runnable iterateDependenciesTask = () -> iterateDependencies(dependenciesBox, publicDependencies, repos, dbConn, httpClient,privatePrefixs, publicPrefixs);
-            Runnable askTask = () -> askDependencies(dependenciesBox, publicDependencies, privateDependencies, repos, stdio, httpClient,privatePrefixs, publicPrefixs);
-            Runnable status = ()-> printStatus(dependenciesBox, stdio);
-            List<Thread> threads = new ArrayList<>();
-            for (int i = 0; i < threadCount; i++) {
-                Thread t = new Thread(iterateDependenciesTask);
-                threads.add(t);
-                t.start();
-            }
+            // hash and scan jars in parallel, every Dependency goes to the box as soon as it is built,
+            // so the workers below already query the network while the rest is still being hashed.
+            dependenciesBox.expectIngestion(jars.size());
+            ForkJoinPool ingestionPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            ForkJoinTask<?> ingestion = ingestionPool.submit(() -> jars.parallelStream().forEach(jar -> {
+                try {
+                    Dependency dependency = new Dependency(jar, dbConn, resolver);
+                    dependenciesBox.ingest(dependency);
+                } catch (Exception e) {
+                    dependenciesBox.skipIngestion();
+                    System.out.println("can not read " + jar + ": " + e);
+                }
+            }));
+            // with virtual threads every stage runs one thread per dependency unless limited with --stage-limits.
+            LookupPipeline pipeline = new LookupPipeline(dependenciesBox, publicDependencies, repos, dbConn, httpClient, privatePrefixs, publicPrefixs,
+                    sha1Index, hashBatcher, fuzzyIndex, transitiveVerifier, threadCount, stageLimits, metrics, tracer);
+            metrics.gauge("d2m_box_queue_depth", dependenciesBox::processingSize, "queue", "processing");
+            metrics.gauge("d2m_box_queue_depth", dependenciesBox::askSize, "queue", "ask");
+            Runnable askTask = () -> askDependencies(dependenciesBox, publicDependencies, privateDependencies, repos, stdio, httpClient,privatePrefixs, publicPrefixs, policy);
+            Runnable status = ()-> printStatus(dependenciesBox, pipeline, stdio, metrics, metricsFile);
+            Thread t1 = new Thread(pipeline::run);
+            t1.start();
             Thread t2 = new Thread(askTask);
             t2.start();
             Thread t3 = new Thread(status);
             t3.start();
-            for (Thread t : threads) {
-                t.join();
-            }
+            ingestion.get();
+            ingestionPool.shutdown();
+            t1.join();
             t3.join();
             t2.join();
+            pipeline.printMetrics();
 
             System.out.println("decompiling priv repo");
-            decompileDependencies(privateDependencies, privateDependenciesFolder, recompileFolder);
+            decompileDependencies(privateDependencies, privateDependenciesFolder, recompileFolder, decompileThreads, decompileMemoryMb, decompileCache, tracer);
+            resolver.installQueued();
             createPom(decompileFolder, recompileFolder, publicDependencies, privateDependencies, repos , jarFile);
+            if (sha1Index != null) {
+                sha1Index.close();
+            }
+            if (metricsFile != null) {
+                metrics.writeSnapshot(metricsFile);
+            }
+            if (traceFile != null) {
+                tracer.write(traceFile);
+            }
             System.out.println("Decompile All Done");
         }
     }
@@ -140,8 +217,50 @@ public class Main {
         Option proxy = new Option("p", "proxy", true, "http proxy, ip(range):port like 194.138.0.2-31:9400");
         options.addOption(proxy);
        
-        Option thread = new Option("t", "threads", true, "thread count");
+        Option thread = new Option("t", "threads", true, "concurrency of every lookup stage");
         options.addOption(thread);
+
+        Option virtualThreads = new Option("vt", "virtual-threads", false, "one virtual thread per dependency instead of -t threads, bounded by --host-limit (java 21)");
+        options.addOption(virtualThreads);
+
+        Option stageLimits = new Option("sl", "stage-limits", true, "concurrency per lookup stage like central-av=4,repo-jar=4, default -t; stages: db, repo-sha1, central-hash, repo-jar, central-av, fuzzy");
+        options.addOption(stageLimits);
+
+        Option hostLimit = new Option("hl", "host-limit", true, "concurrent requests per proxy and host, default " + HttpClientProvider.DEFAULT_MAX_REQUESTS_PER_HOST);
+        options.addOption(hostLimit);
+
+        Option poolSize = new Option("ps", "pool-size", true, "idle http connections kept for reuse, shared by all proxies, default " + HttpClientProvider.DEFAULT_POOL_SIZE);
+        options.addOption(poolSize);
+
+        Option classesOnly = new Option("c", "classes-only", false, "only decompile BOOT-INF/classes, copy the rest of the jar as is");
+        options.addOption(classesOnly);
+
+        Option decompileThreads = new Option("dt", "decompile-threads", true, "concurrent private dependency decompile jobs, default cpu count");
+        options.addOption(decompileThreads);
+
+        Option decompileMemory = new Option("dm", "decompile-memory", true, "heap budget in MB shared by concurrent decompile jobs, default 3/4 of max heap");
+        options.addOption(decompileMemory);
+
+        Option decompileCache = new Option("dc", "decompile-cache", true, "folder caching decompiled classes by content hash, reused across runs");
+        options.addOption(decompileCache);
+
+        Option index = new Option("x", "index", true, "offline sha1 index built with oicu.Sha1Index, consulted before any network search");
+        options.addOption(index);
+
+        Option fuzzyThreshold = new Option("fz", "fuzzy-threshold", true, "match re-packaged public jars by class similarity (0-1, like 0.9) against jars verified in earlier runs");
+        options.addOption(fuzzyThreshold);
+
+        Option rules = new Option("r", "rules", true, "rules file classifying unidentified jars without asking, decisions are logged to <output>/decisions.tsv");
+        options.addOption(rules);
+
+        Option metrics = new Option("m", "metrics", true, "file the run metrics are written to every 10 seconds and at the end, prometheus text, or json if it ends with .json");
+        options.addOption(metrics);
+
+        Option trace = new Option("tr", "trace", true, "file a chrome trace event json is written to at the end, one track per dependency (open in ui.perfetto.dev)");
+        options.addOption(trace);
+
+        Option localRepo = new Option("lr", "local-repo", true, "maven local repository used to check dependencies resolve, default ~/.m2/repository");
+        options.addOption(localRepo);
         return options;
     }
 }
\ No newline at end of file
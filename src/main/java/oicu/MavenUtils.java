@@ -18,11 +18,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
-import static java.lang.Thread.sleep;
 import static oicu.VineflowerUtils.decompileJar;
 import static oicu.FileSystemUtils.copy_src;
 import static oicu.GAVQueryUtils.*;
@@ -30,43 +30,16 @@ import static oicu.GAVQueryUtils.*;
 
 public class MavenUtils {
     @SneakyThrows
-    public static void iterateDependencies(DependenciesBox dependenciesBox, Set<Dependency> publicDepencies, List<String> repos, Connection dbConn, HttpClientProvider httpClient, List<String> privatePrefixs , List<String> publicPrefixs)  {
-        while (true) {
-            if (dependenciesBox.isEmpty()) {
-                return;
-            }
-            Dependency dependency = dependenciesBox.fetchProcessing();
-            if (dependency==null) {
-                sleep(100);
-                continue;
-            }
-            // if not class file in the dep, drop it
-            if (dependency.getClassPath() == null){
-                dependenciesBox.settleOneDependency();
-                continue;
-            }
-            checkGAV(dependency, dbConn, httpClient, repos,privatePrefixs , publicPrefixs);
-            if (dependency.isVerified()) {
-                publicDepencies.add(dependency);
-                dependenciesBox.settleOneDependency();
-            } else {
-                dependenciesBox.addask(dependency);
-                dependenciesBox.settleOneDependency();
-            }
-        }
-    }
-
-   
-    @SneakyThrows
-    public static void printStatus(DependenciesBox dependenciesBox, AtomicBoolean stdio){
-        int size = dependenciesBox.processingSize();
+    public static void printStatus(DependenciesBox dependenciesBox, LookupPipeline pipeline, AtomicBoolean stdio, MetricsRegistry metrics, Path metricsFile){
         int print = 0;
-        while(true){
-            if (dependenciesBox.isEmpty()) {
-                return;
+        int ticks = 0;
+        while(!dependenciesBox.awaitDone(1, TimeUnit.SECONDS)){
+            if (metricsFile != null && ++ticks % 10 == 0) {
+                metrics.writeSnapshot(metricsFile);
             }
-            sleep(1000);
-            int current_size = dependenciesBox.processingSize();
+            // jars keep arriving while ingestion runs, size grows with them.
+            int size = dependenciesBox.ingestedSize();
+            int current_size = dependenciesBox.processingSize() + pipeline.inFlight();
             int processed = size - current_size;
             if(stdio.get()){
                 if ( processed - print > 10){
@@ -78,16 +51,9 @@ public class MavenUtils {
     }
     
     @SneakyThrows
-    public static void askDependencies(DependenciesBox dependenciesBox, Set<Dependency> publicDependencies, Set<Dependency> privateDependencies, List<String> repos, AtomicBoolean stdio, HttpClientProvider httpClient, List<String> privatePrefixs, List<String> publicPrefixs) {
-        while(true){
-            if (dependenciesBox.isEmpty()) {
-                return;
-            }
-            Dependency dependency = dependenciesBox.fetchAsk();
-            if (dependency==null) {
-                sleep(100);
-                continue;
-            }
+    public static void askDependencies(DependenciesBox dependenciesBox, Set<Dependency> publicDependencies, Set<Dependency> privateDependencies, List<String> repos, AtomicBoolean stdio, HttpClientProvider httpClient, PrefixTrie privatePrefixs, PrefixTrie publicPrefixs, ClassificationPolicy policy) {
+        Dependency dependency;
+        while((dependency = dependenciesBox.takeAsk()) != null){
             // check is private by class name prefix.
             // find one in ask
             // ask for private / public / public with addtional repo
@@ -95,9 +61,18 @@ public class MavenUtils {
             // public : add to public , with randomized gav
             // public with addtional repo:
             // clear all ask, go back to processing, add repo
-            if (dependency.isFqcnBelongsPrefixs(privatePrefixs)){
+            // with a rules file the rules answer instead of the prompt, unless they say ask.
+            ClassificationPolicy.Decision decision = policy == null ? null : policy.decide(dependency, privatePrefixs, publicPrefixs);
+            if (decision == null && dependency.isFqcnBelongsPrefixs(privatePrefixs)) {
+                decision = ClassificationPolicy.Decision.PRIVATE;
+            }
+            if (decision != null) {
                 dependency.verify("oicu",dependency.unverifiedArtifactId,dependency.unverifiedVersion,"");
-                privateDependencies.add(dependency);
+                if (decision == ClassificationPolicy.Decision.PRIVATE) {
+                    privateDependencies.add(dependency);
+                } else {
+                    publicDependencies.add(dependency);
+                }
                 dependenciesBox.settleOneDependency();
                 continue;
             }
@@ -141,11 +116,14 @@ public class MavenUtils {
                 } else if ("add repo".equalsIgnoreCase(input)) {
                     System.out.println("input repo url");
                     String input2 = scanner.nextLine();
-                    if (httpClient.isLive(input2)) {
+                    if (httpClient.isLive(input2) && !repos.contains(input2)) {
                         repos.add(input2);
+                        // back through the pipeline, where only the new repo is probed for each of them.
+                        dependenciesBox.moveAskToProcessing();
+                        dependenciesBox.addprocessing(dependency);
+                    } else {
+                        dependenciesBox.addask(dependency);
                     }
-                    dependenciesBox.moveAskToProcessing();
-                    dependenciesBox.addprocessing(dependency);
                     dependenciesBox.settleOneDependency();
                     break;
                 } else if ("priv pre".equalsIgnoreCase(input)) {
@@ -154,14 +132,23 @@ public class MavenUtils {
                     privatePrefixs.add(input3);
                     dependenciesBox.addask(dependency);
                     dependenciesBox.settleOneDependency();
+                    // every waiting jar under the prefix is private now, no need to ask for them one by one.
+                    for (Dependency matched : dependenciesBox.takeAsk(d -> d.isFqcnBelongsPrefixs(privatePrefixs))) {
+                        matched.verify("oicu",matched.unverifiedArtifactId,matched.unverifiedVersion,"");
+                        privateDependencies.add(matched);
+                    }
                     break;
                 } else if ("pub pre".equalsIgnoreCase(input)) {
                     System.out.println("input pub class prefix (like io/jmix/)");
                     String input3 = scanner.nextLine();
                     publicPrefixs.add(input3);
-                    dependenciesBox.moveAskToProcessing();
-                    dependenciesBox.addprocessing(dependency);
+                    dependenciesBox.addask(dependency);
                     dependenciesBox.settleOneDependency();
+                    // jars in the ask queue already failed every search, the prefix is all that is left to check.
+                    for (Dependency matched : dependenciesBox.takeAsk(d -> d.isFqcnBelongsPrefixs(publicPrefixs))) {
+                        matched.verify("oicu",matched.unverifiedArtifactId,matched.unverifiedVersion,"");
+                        publicDependencies.add(matched);
+                    }
                     break;
                 } else {
                     System.out.println("Invalid input.");
@@ -171,12 +158,48 @@ public class MavenUtils {
         }
     }
 
-    public static void decompileDependencies(Set<Dependency> privateDep, Path privateDependenciesFolder, Path recompileFolder) throws IOException {
-        for (Dependency privateDependency : privateDep) {
-            Path dstFolder = privateDependenciesFolder.resolve(privateDependency.path.getFileName().toString().replace(".jar", ""));
+    // rough heap needed by vineflower per byte of input jar, and the floor for small jars.
+    private static final long DECOMPILE_MEMORY_PER_JAR_BYTE = 20;
+    private static final long MIN_DECOMPILE_MEMORY_MB = 64;
+
+    public static void decompileDependencies(Set<Dependency> privateDep, Path privateDependenciesFolder, Path recompileFolder, int workers, long memoryBudgetMb, DecompileCache cache, TraceRecorder tracer) throws IOException, InterruptedException {
+        // sort by file name so that copy_src overwrites in the same order on every run,
+        // the last jar in name order wins when two jars contain the same path.
+        List<Dependency> sorted = new ArrayList<>(privateDep);
+        sorted.sort(Comparator.comparing(d -> d.path.getFileName().toString()));
+        int budget = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudgetMb));
+        Semaphore memory = new Semaphore(budget, true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers));
+        List<Future<Path>> futures = new ArrayList<>();
+        for (Dependency privateDependency : sorted) {
             //dstFolder can not be named .jar, decompiler will get confused
-            decompileJar(privateDependency.path, dstFolder);
-            copy_src(dstFolder, recompileFolder);
+            Path dstFolder = privateDependenciesFolder.resolve(privateDependency.path.getFileName().toString().replace(".jar", ""));
+            long jarMb = Files.size(privateDependency.path) * DECOMPILE_MEMORY_PER_JAR_BYTE / (1024 * 1024);
+            // a jar bigger than the whole budget still runs, just alone.
+            int permits = (int) Math.min(budget, Math.max(MIN_DECOMPILE_MEMORY_MB, jarMb));
+            int track = tracer.track(privateDependency, privateDependency.path.getFileName().toString());
+            long queuedAt = tracer.now();
+            futures.add(executor.submit(() -> {
+                memory.acquire(permits);
+                long start = tracer.now();
+                tracer.span(track, "queued for decompile", "queue", queuedAt, start);
+                try {
+                    decompileJar(privateDependency.path, dstFolder, cache);
+                } finally {
+                    memory.release(permits);
+                    tracer.span(track, "decompile", "decompile", start, tracer.now(), "memory_mb", permits);
+                }
+                return dstFolder;
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<Path> future : futures) {
+                copy_src(future.get(), recompileFolder);
+            }
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            throw new IOException("decompile private dependency failed", e.getCause());
         }
     }
 
@@ -0,0 +1,163 @@
+package oicu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.SneakyThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// counters, latency histograms and gauges of one run, written as a snapshot to a prometheus text file,
+// or json when the file name ends with .json. a metric is a name plus labels given as key, value pairs,
+// e.g. counter("d2m_http_requests_total", "host", "repo1.maven.org", "proxy", "direct").
+// snapshots are written aside and moved, so a collector polling the file never reads half of one.
+public class MetricsRegistry {
+    // upper bounds in seconds, from a local db lookup to a slow full jar download.
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120};
+
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeNanos(long nanos) {
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BUCKETS.length && seconds > BUCKETS[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0.0 : sumNanos.sum() / 1e6 / n;
+        }
+    }
+
+    // metric name -> label string like {host="x",proxy="y"} -> value
+    private final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Histogram>> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Supplier<Number>>> gauges = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name, String... labels) {
+        return counters.computeIfAbsent(name, k -> new ConcurrentHashMap<>()).computeIfAbsent(labels(labels), k -> new LongAdder());
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(name, k -> new ConcurrentHashMap<>()).computeIfAbsent(labels(labels), k -> new Histogram());
+    }
+
+    // read when a snapshot is written, like a queue depth.
+    public void gauge(String name, Supplier<Number> value, String... labels) {
+        gauges.computeIfAbsent(name, k -> new ConcurrentHashMap<>()).put(labels(labels), value);
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be key, value pairs");
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return text.append('}').toString();
+    }
+
+    @SneakyThrows
+    public void writeSnapshot(Path file) {
+        String snapshot = file.getFileName().toString().endsWith(".json") ? toJson() : toPrometheus();
+        Path dir = file.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        Files.writeString(tmp, snapshot, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Map<String, LongAdder>> metric : new TreeMap<>(counters).entrySet()) {
+            text.append("# TYPE ").append(metric.getKey()).append(" counter\n");
+            new TreeMap<>(metric.getValue()).forEach((labels, value) -> text.append(metric.getKey()).append(labels).append(' ').append(value.sum()).append('\n'));
+        }
+        for (Map.Entry<String, Map<String, Supplier<Number>>> metric : new TreeMap<>(gauges).entrySet()) {
+            text.append("# TYPE ").append(metric.getKey()).append(" gauge\n");
+            new TreeMap<>(metric.getValue()).forEach((labels, value) -> text.append(metric.getKey()).append(labels).append(' ').append(value.get()).append('\n'));
+        }
+        for (Map.Entry<String, Map<String, Histogram>> metric : new TreeMap<>(histograms).entrySet()) {
+            String name = metric.getKey();
+            text.append("# TYPE ").append(name).append(" histogram\n");
+            new TreeMap<>(metric.getValue()).forEach((labels, histogram) -> {
+                long cumulative = 0;
+                for (int i = 0; i <= BUCKETS.length; i++) {
+                    cumulative += histogram.buckets[i].sum();
+                    String le = i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf";
+                    String bucketLabels = labels.isEmpty() ? "{le=\"" + le + "\"}" : labels.substring(0, labels.length() - 1) + ",le=\"" + le + "\"}";
+                    text.append(name).append("_bucket").append(bucketLabels).append(' ').append(cumulative).append('\n');
+                }
+                text.append(name).append("_sum").append(labels).append(' ').append(histogram.sumNanos.sum() / 1e9).append('\n');
+                text.append(name).append("_count").append(labels).append(' ').append(histogram.count.sum()).append('\n');
+            });
+        }
+        return text.toString();
+    }
+
+    @SneakyThrows
+    public String toJson() {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        ObjectNode counterNode = root.putObject("counters");
+        counters.forEach((name, values) -> {
+            ObjectNode metric = counterNode.putObject(name);
+            values.forEach((labels, value) -> metric.put(labels, value.sum()));
+        });
+        ObjectNode gaugeNode = root.putObject("gauges");
+        gauges.forEach((name, values) -> {
+            ObjectNode metric = gaugeNode.putObject(name);
+            values.forEach((labels, value) -> metric.put(labels, value.get().doubleValue()));
+        });
+        ObjectNode histogramNode = root.putObject("histograms");
+        histograms.forEach((name, values) -> {
+            ObjectNode metric = histogramNode.putObject(name);
+            values.forEach((labels, histogram) -> {
+                ObjectNode node = metric.putObject(labels);
+                node.put("count", histogram.count.sum());
+                node.put("sum_seconds", histogram.sumNanos.sum() / 1e9);
+                ArrayNode buckets = node.putArray("buckets");
+                long cumulative = 0;
+                for (int i = 0; i <= BUCKETS.length; i++) {
+                    cumulative += histogram.buckets[i].sum();
+                    ObjectNode bucket = buckets.addObject();
+                    bucket.put("le", i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf");
+                    bucket.put("count", cumulative);
+                }
+            });
+        });
+        return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(root);
+    }
+}
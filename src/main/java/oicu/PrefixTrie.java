@@ -0,0 +1,49 @@
+package oicu;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// class name prefixes like com/siemens/, one character per level.
+// rules are added from the ask thread while worker threads match, so nodes are concurrent.
+// matching a name is a single walk down the trie, whatever the number of rules.
+public class PrefixTrie {
+    private static class Node {
+        final Map<Character, Node> children = new ConcurrentHashMap<>();
+        volatile boolean terminal = false;
+    }
+
+    private final Node root = new Node();
+
+    public void add(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length(); i++) {
+            node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+        }
+        node.terminal = true;
+    }
+
+    // whether some rule is a prefix of name.
+    public boolean matches(String name) {
+        Node node = root;
+        for (int i = 0; i < name.length(); i++) {
+            if (node.terminal) {
+                return true;
+            }
+            node = node.children.get(name.charAt(i));
+            if (node == null) {
+                return false;
+            }
+        }
+        return node.terminal;
+    }
+
+    public boolean matchesAny(Collection<String> names) {
+        for (String name : names) {
+            if (matches(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
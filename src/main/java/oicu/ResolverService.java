@@ -0,0 +1,170 @@
+package oicu;
+
+import lombok.Getter;
+import lombok.SneakyThrows;
+import org.apache.maven.model.Model;
+import org.apache.maven.model.io.DefaultModelWriter;
+import org.apache.maven.repository.internal.MavenRepositorySystemUtils;
+import org.eclipse.aether.DefaultRepositorySystemSession;
+import org.eclipse.aether.RepositorySystem;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.DefaultArtifact;
+import org.eclipse.aether.collection.CollectRequest;
+import org.eclipse.aether.collection.DependencyCollectionException;
+import org.eclipse.aether.graph.DependencyNode;
+import org.eclipse.aether.installation.InstallRequest;
+import org.eclipse.aether.repository.LocalRepository;
+import org.eclipse.aether.repository.RemoteRepository;
+import org.eclipse.aether.supplier.RepositorySystemSupplier;
+import org.eclipse.aether.transfer.ArtifactNotFoundException;
+import org.eclipse.aether.util.artifact.SubArtifact;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// one RepositorySystem and one read-only session for the whole run, shared by all worker threads.
+// the local repository persists between runs, so poms and metadata fetched once are not fetched again.
+// collected graphs are cached per gav and repo; concurrent callers asking the same thing wait for one collection.
+// a failed collection is only cached when a pom was not found, any other failure is tried again by the next caller.
+public class ResolverService {
+    @Getter
+    private final RepositorySystem system;
+    @Getter
+    private final RepositorySystemSession session;
+    private final Map<String, RemoteRepository> remoteRepositories = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<DependencyNode>> collectResults = new ConcurrentHashMap<>();
+    private final Queue<Dependency> installQueue = new ConcurrentLinkedQueue<>();
+    private final MetricsRegistry metrics;
+    private final TraceRecorder tracer;
+
+    public ResolverService(Path localRepository, MetricsRegistry metrics, TraceRecorder tracer) {
+        this.metrics = metrics;
+        this.tracer = tracer;
+        system = new RepositorySystemSupplier().get();
+        DefaultRepositorySystemSession newSession = MavenRepositorySystemUtils.newSession();
+        LocalRepository localRepo = new LocalRepository(localRepository.toFile());
+        newSession.setLocalRepositoryManager(system.newLocalRepositoryManager(newSession, localRepo));
+        // poms activate profiles on java.version and friends, without them the model of most artifacts does not build.
+        newSession.setSystemProperties(System.getProperties());
+        newSession.setReadOnly();
+        session = newSession;
+    }
+
+    public RemoteRepository remoteRepository(String url) {
+        // the persistent local repository records which repo id an artifact came from, keep ids distinct.
+        return remoteRepositories.computeIfAbsent(url, u -> {
+            String id = u.equals(GAVQueryUtils.CENTRAL_REPO) ? "central" : u.replaceAll("[\\\\/:\"<>|?*]", "");
+            return new RemoteRepository.Builder(id, "default", u).build();
+        });
+    }
+
+    // whether the dependency graph of groupId:artifactId:version can be collected from repo.
+    public boolean isResolvable(String groupId, String artifactId, String version, String repo) {
+        return collect(groupId, artifactId, version, repo) != null;
+    }
+
+    // the dependency graph of groupId:artifactId:version collected from repo, null if it can not be collected.
+    // based on: https://github.com/apache/maven-resolver/blob/562efa97876b5bec721c1a6c1410306cefe82837/maven-resolver-demos/maven-resolver-demo-snippets/src/main/java/org/apache/maven/resolver/examples/GetDependencyTree.java
+    public DependencyNode collect(String groupId, String artifactId, String version, String repo) {
+        String key = groupId + ":" + artifactId + ":" + version + "@" + repo;
+        CompletableFuture<DependencyNode> result = new CompletableFuture<>();
+        CompletableFuture<DependencyNode> existing = collectResults.putIfAbsent(key, result);
+        if (existing != null) {
+            metrics.counter("d2m_cache_requests_total", "cache", "resolver-collect", "result", "hit").increment();
+            return existing.join();
+        }
+        metrics.counter("d2m_cache_requests_total", "cache", "resolver-collect", "result", "miss").increment();
+        long start = System.nanoTime();
+        // "org.jeecgframework.boot:jeecg-boot-starter-cloud:2.4.0"
+        CollectRequest collectRequest = new CollectRequest();
+        collectRequest.setRoot(new org.eclipse.aether.graph.Dependency(new DefaultArtifact(groupId + ":" + artifactId + ":" + version), ""));
+        collectRequest.setRepositories(new ArrayList<>(Collections.singletonList(remoteRepository(repo))));
+        try {
+            result.complete(system.collectDependencies(session, collectRequest).getRoot());
+        } catch (Exception e) {
+            if (!isNotFound(e)) {
+                // e.g. a timeout, the callers waiting now get null, the next one collects again.
+                collectResults.remove(key, result);
+            }
+            result.complete(null);
+        }
+        metrics.histogram("d2m_resolver_seconds", "op", "collect").observeNanos(System.nanoTime() - start);
+        tracer.span("collect " + groupId + ":" + artifactId + ":" + version, "resolver", start, "repo", repo, "resolved", result.join() != null);
+        return result.join();
+    }
+
+    // whether the collection failed because a pom is not in the repo, rather than because it could not be fetched.
+    private static boolean isNotFound(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ArtifactNotFoundException) {
+                return true;
+            }
+            if (cause instanceof DependencyCollectionException collectionException) {
+                for (Exception exception : collectionException.getResult().getExceptions()) {
+                    if (exception != cause && isNotFound(exception)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // where the local repository keeps this jar, it may not be there.
+    public Path localArtifactPath(String groupId, String artifactId, String version) {
+        String relative = session.getLocalRepositoryManager().getPathForLocalArtifact(new DefaultArtifact(groupId + ":" + artifactId + ":" + version));
+        return session.getLocalRepository().getBasedir().toPath().resolve(relative);
+    }
+
+    // jars that are in no repository, installed all together by installQueued before the pom is written.
+    public void queueInstall(Dependency dependency) {
+        installQueue.add(dependency);
+    }
+
+    @SneakyThrows
+    public void installQueued() {
+        InstallRequest installRequest = new InstallRequest();
+        List<Path> poms = new ArrayList<>();
+        Dependency dependency;
+        while ((dependency = installQueue.poll()) != null) {
+            Path pom = Files.createTempFile("install", ".pom");
+            poms.add(pom);
+            writeMinimalPom(dependency, pom);
+            Artifact jar = new DefaultArtifact(dependency.getVerifiedGroupId(), dependency.getVerifiedArtifactId(), "", "jar", dependency.getVerifiedVersion())
+                    .setFile(dependency.path.toFile());
+            installRequest.addArtifact(jar);
+            installRequest.addArtifact(new SubArtifact(jar, "", "pom", pom.toFile()));
+        }
+        if (installRequest.getArtifacts().isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            system.install(session, installRequest);
+            metrics.histogram("d2m_resolver_seconds", "op", "install").observeNanos(System.nanoTime() - start);
+            tracer.span("install", "resolver", start, "artifacts", installRequest.getArtifacts().size());
+        } finally {
+            for (Path pom : poms) {
+                Files.deleteIfExists(pom);
+            }
+        }
+        System.out.println("installed " + installRequest.getArtifacts().size() / 2 + " jars into " + session.getLocalRepository().getBasedir());
+    }
+
+    // what mvn install:install-file -DgeneratePom=true would write.
+    private static void writeMinimalPom(Dependency dependency, Path pom) throws IOException {
+        Model model = new Model();
+        model.setModelVersion("4.0.0");
+        model.setGroupId(dependency.getVerifiedGroupId());
+        model.setArtifactId(dependency.getVerifiedArtifactId());
+        model.setVersion(dependency.getVerifiedVersion());
+        model.setPackaging("jar");
+        new DefaultModelWriter().write(pom.toFile(), null, model);
+    }
+}
@@ -0,0 +1,348 @@
+package oicu;
+
+import lombok.SneakyThrows;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+// offline sha1 -> groupId:artifactId:version table, for hosts that can not reach maven central.
+// file layout, big endian:
+//   magic(8) count(4) records(count * 28) pool
+//   record = sha1(20) offset of the gav in pool(8), sorted by sha1
+//   pool   = length(2) utf-8 gav, ...
+// records are memory-mapped in segments and binary searched, gav strings are read on hit only.
+// the builder sorts externally: sorted runs of RUN_SIZE entries on disk, then one merge into the index,
+// so neither a full central export nor the index has to fit in the heap or in a single mapping.
+public class Sha1Index implements AutoCloseable {
+    private static final byte[] MAGIC = "D2MSHA1\0".getBytes(UTF_8);
+    private static final int HEADER_SIZE = 12;
+    private static final int SHA1_SIZE = 20;
+    private static final int RECORD_SIZE = SHA1_SIZE + 8;
+    // records per mapped segment, 1.75 GiB: one mapping can not be larger than 2 GiB.
+    private static final int SEGMENT_RECORDS = 1 << 26;
+    // entries sorted in the heap at a time while building.
+    private static final int RUN_SIZE = 1 << 20;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final int count;
+    private final long poolOffset;
+
+    public Sha1Index(Path indexFile) throws IOException {
+        channel = FileChannel.open(indexFile, StandardOpenOption.READ);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        header.flip();
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            channel.close();
+            throw new IOException(indexFile + " is not a sha1 index");
+        }
+        count = header.getInt();
+        poolOffset = HEADER_SIZE + (long) count * RECORD_SIZE;
+        segments = new MappedByteBuffer[(int) (((long) count + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS)];
+        for (int i = 0; i < segments.length; i++) {
+            long first = (long) i * SEGMENT_RECORDS;
+            long records = Math.min(SEGMENT_RECORDS, count - first);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, records * RECORD_SIZE);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // groupId:artifactId:version, null if unknown.
+    @SneakyThrows
+    public String lookup(String sha1) {
+        if (sha1 == null || sha1.length() != SHA1_SIZE * 2) {
+            return null;
+        }
+        byte[] key = HexFormat.of().parseHex(sha1);
+        byte[] probe = new byte[SHA1_SIZE];
+        long low = 0;
+        long high = count - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            MappedByteBuffer segment = segments[(int) (mid / SEGMENT_RECORDS)];
+            int position = (int) (mid % SEGMENT_RECORDS) * RECORD_SIZE;
+            segment.get(position, probe);
+            int cmp = Arrays.compareUnsigned(probe, key);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return readGav(poolOffset + segment.getLong(position + SHA1_SIZE));
+            }
+        }
+        return null;
+    }
+
+    private String readGav(long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(2);
+        readFully(length, position);
+        ByteBuffer gav = ByteBuffer.allocate(Short.toUnsignedInt(length.getShort(0)));
+        readFully(gav, position + 2);
+        return new String(gav.array(), UTF_8);
+    }
+
+    // positional reads, safe to share the channel between threads.
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("truncated sha1 index");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // source is either
+    //   a text export, one "sha1 groupId:artifactId:version" per line (space, tab or comma separated, # comments), or
+    //   a local maven repository mirror, every <g>/<a>/<v>/<a>-<v>.jar.sha1 in it is imported.
+    public static int build(Path source, Path indexFile) throws IOException {
+        Path folder = indexFile.toAbsolutePath().getParent();
+        Path runFolder = Files.createTempDirectory(folder, "sha1-runs");
+        try {
+            Runs runs = new Runs(runFolder);
+            if (Files.isDirectory(source)) {
+                importMirror(source, runs);
+            } else {
+                importExport(source, runs);
+            }
+            runs.flush();
+            return merge(runs.files, folder, indexFile);
+        } finally {
+            try (Stream<Path> files = Files.list(runFolder)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(runFolder);
+        }
+    }
+
+    private static final class Entry {
+        final byte[] sha1;
+        final byte[] gav;
+
+        Entry(byte[] sha1, byte[] gav) {
+            this.sha1 = sha1;
+            this.gav = gav;
+        }
+    }
+
+    // entries in files of at most RUN_SIZE, each sorted by sha1. the sort is stable, input order is kept for equal sha1s.
+    private static final class Runs {
+        private final Path folder;
+        private final List<Path> files = new ArrayList<>();
+        private final List<Entry> buffer = new ArrayList<>();
+
+        Runs(Path folder) {
+            this.folder = folder;
+        }
+
+        void add(Entry entry) throws IOException {
+            buffer.add(entry);
+            if (buffer.size() >= RUN_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (buffer.isEmpty()) {
+                return;
+            }
+            buffer.sort((a, b) -> Arrays.compareUnsigned(a.sha1, b.sha1));
+            Path file = folder.resolve("run-" + files.size());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.writeInt(buffer.size());
+                for (Entry entry : buffer) {
+                    out.write(entry.sha1);
+                    out.writeShort(entry.gav.length);
+                    out.write(entry.gav);
+                }
+            }
+            files.add(file);
+            buffer.clear();
+        }
+    }
+
+    private static final class RunReader implements AutoCloseable {
+        final int index;
+        private final DataInputStream in;
+        private int remaining;
+        Entry current;
+
+        RunReader(int index, Path file) throws IOException {
+            this.index = index;
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+            remaining = in.readInt();
+        }
+
+        // false once the run is exhausted.
+        boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            byte[] sha1 = new byte[SHA1_SIZE];
+            in.readFully(sha1);
+            byte[] gav = new byte[in.readUnsignedShort()];
+            in.readFully(gav);
+            current = new Entry(sha1, gav);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // k-way merge of the runs into the index. records are written as they come out of the merge, the pool
+    // to a file of its own appended after them, and the count is patched into the header at the end.
+    private static int merge(List<Path> runFiles, Path folder, Path indexFile) throws IOException {
+        Path tmp = Files.createTempFile(folder, indexFile.getFileName().toString(), ".tmp");
+        Path poolFile = Files.createTempFile(folder, indexFile.getFileName().toString(), ".pool");
+        long count = 0;
+        // equal sha1s come out in input order: runs are compared by index after the sha1.
+        PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Arrays.compareUnsigned(a.current.sha1, b.current.sha1);
+            return cmp != 0 ? cmp : Integer.compare(a.index, b.index);
+        });
+        try {
+            for (int i = 0; i < runFiles.size(); i++) {
+                RunReader reader = new RunReader(i, runFiles.get(i));
+                if (reader.next()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            try (OutputStream os = Files.newOutputStream(tmp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+                 DataOutputStream pool = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(poolFile)))) {
+                out.write(MAGIC);
+                out.writeInt(0);
+                long offset = 0;
+                byte[] last = null;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    Entry entry = reader.current;
+                    // several gavs can share one jar, the first one wins.
+                    if (last == null || !Arrays.equals(last, entry.sha1)) {
+                        out.write(entry.sha1);
+                        out.writeLong(offset);
+                        pool.writeShort(entry.gav.length);
+                        pool.write(entry.gav);
+                        offset += 2 + entry.gav.length;
+                        last = entry.sha1;
+                        count++;
+                    }
+                    if (reader.next()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                }
+                if (count > Integer.MAX_VALUE) {
+                    throw new IOException("too many artifacts for one sha1 index: " + count);
+                }
+                pool.flush();
+                out.flush();
+                Files.copy(poolFile, os);
+            }
+            try (FileChannel header = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                header.write(ByteBuffer.allocate(4).putInt(0, (int) count), MAGIC.length);
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            Files.deleteIfExists(poolFile);
+            Files.deleteIfExists(tmp);
+        }
+        return (int) count;
+    }
+
+    private static void importExport(Path source, Runs runs) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(source, UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("[\\s,]+");
+                if (parts.length < 2 || parts[1].split(":").length != 3) {
+                    System.out.println("Invalid index line: " + line);
+                    continue;
+                }
+                addEntry(runs, parts[0], parts[1]);
+            }
+        }
+    }
+
+    private static void importMirror(Path mirror, Runs runs) throws IOException {
+        try (Stream<Path> stream = Files.walk(mirror)) {
+            for (Path sha1File : (Iterable<Path>) stream.filter(p -> p.getFileName().toString().endsWith(".jar.sha1"))::iterator) {
+                Path versionFolder = sha1File.getParent();
+                Path artifactFolder = versionFolder.getParent();
+                if (artifactFolder == null || artifactFolder.getParent() == null) {
+                    continue;
+                }
+                String version = versionFolder.getFileName().toString();
+                String artifactId = artifactFolder.getFileName().toString();
+                // skip classifiers like -sources.jar, only the main artifact is in BOOT-INF/lib
+                if (!sha1File.getFileName().toString().equals(artifactId + "-" + version + ".jar.sha1")) {
+                    continue;
+                }
+                Path groupFolder = mirror.relativize(artifactFolder.getParent());
+                String groupId = groupFolder.toString().replace('\\', '/').replace('/', '.');
+                // .sha1 files sometimes carry the file name after the hash
+                String sha1 = Files.readString(sha1File).trim().split("\\s+")[0];
+                addEntry(runs, sha1, groupId + ":" + artifactId + ":" + version);
+            }
+        }
+    }
+
+    private static void addEntry(Runs runs, String sha1, String gav) throws IOException {
+        if (!sha1.matches("[0-9a-fA-F]{40}")) {
+            return;
+        }
+        runs.add(new Entry(HexFormat.of().parseHex(sha1), gav.getBytes(UTF_8)));
+    }
+
+    // java -cp decompile2mvn.jar oicu.Sha1Index <export file or mirror folder> <index file>
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("usage: oicu.Sha1Index <export file | maven mirror folder> <index file>");
+            System.exit(1);
+        }
+        int size = build(Path.of(args[0]), Path.of(args[1]));
+        System.out.println("indexed " + size + " artifacts into " + args[1]);
+    }
+}
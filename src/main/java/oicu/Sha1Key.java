@@ -0,0 +1,82 @@
+package oicu;
+
+import java.nio.ByteBuffer;
+import java.util.HexFormat;
+
+// a sha1 digest as 20 bytes in two longs and an int, instead of a 40 character hex string.
+// equality is on all 160 bits; the digest is already uniform, so any of its bits make a good hash code.
+public final class Sha1Key {
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    private Sha1Key(long high, long middle, int low) {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+    }
+
+    public static Sha1Key of(byte[] digest) {
+        if (digest.length != 20) {
+            throw new IllegalArgumentException("sha1 digest must be 20 bytes: " + digest.length);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(digest);
+        return new Sha1Key(buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    // null if hex is not a sha1, e.g. an html error page returned in place of a .sha1 file.
+    public static Sha1Key parse(String hex) {
+        if (hex == null || hex.length() != 40) {
+            return null;
+        }
+        try {
+            return of(HexFormat.of().parseHex(hex));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // the digest in the content of a .sha1 file: upper or lower case, maybe with a trailing newline,
+    // or in the "<sha1>  <file name>" form of sha1sum. null if there is no sha1 in it.
+    public static Sha1Key parseChecksum(String content) {
+        if (content == null) {
+            return null;
+        }
+        String trimmed = content.strip();
+        int end = 0;
+        while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+            end++;
+        }
+        return parse(trimmed.substring(0, end));
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(20).putLong(high).putLong(middle).putInt(low).array();
+    }
+
+    // whether text holds this digest, a db value or the content of a .sha1 file, see parseChecksum.
+    public boolean matches(String text) {
+        return equals(parseChecksum(text));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof Sha1Key other)) {
+            return false;
+        }
+        return high == other.high && middle == other.middle && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return HexFormat.of().formatHex(toBytes());
+    }
+}
@@ -0,0 +1,145 @@
+package oicu;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.Getter;
+import lombok.SneakyThrows;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// spans of one run in the chrome trace event format, open the file in https://ui.perfetto.dev or chrome://tracing.
+// every dependency gets its own track (a tid), so one row shows everything done for that jar: time queued
+// for and spent in each lookup stage, every http attempt with its proxy, resolver calls and its decompile.
+// spans are recorded on the track of the current thread, set with onTrack; work outside any dependency goes
+// to track 0. tasks run in parallel for one track, like the candidate checks of a jar, get lanes: extra
+// tracks named after it, one per concurrent task, since the spans of one track must nest to be drawn.
+// a disabled recorder records nothing.
+public class TraceRecorder {
+    private static final int NO_TRACK = 0;
+
+    @Getter
+    private final boolean enabled;
+    private final long origin = System.nanoTime();
+    private final Queue<Object[]> spans = new ConcurrentLinkedQueue<>();
+    private final Map<Object, Integer> tracks = new ConcurrentHashMap<>();
+    private final Map<Integer, String> trackNames = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTrack = new AtomicInteger(NO_TRACK + 1);
+    private final ThreadLocal<Integer> currentTrack = ThreadLocal.withInitial(() -> NO_TRACK);
+    // track -> its lanes not in use, and the number of lanes it has
+    private final Map<Integer, Queue<Integer>> freeLanes = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> laneCounts = new ConcurrentHashMap<>();
+
+    public TraceRecorder(boolean enabled) {
+        this.enabled = enabled;
+        trackNames.put(NO_TRACK, "other");
+    }
+
+    public long now() {
+        return System.nanoTime();
+    }
+
+    // the track of owner, created with name the first time.
+    public int track(Object owner, String name) {
+        if (!enabled) {
+            return NO_TRACK;
+        }
+        return tracks.computeIfAbsent(owner, k -> {
+            int track = nextTrack.getAndIncrement();
+            trackNames.put(track, name);
+            return track;
+        });
+    }
+
+    // a lane of track not used by another task, given back with releaseLane.
+    public int acquireLane(int track) {
+        if (!enabled) {
+            return NO_TRACK;
+        }
+        Integer lane = freeLanes.computeIfAbsent(track, k -> new ConcurrentLinkedQueue<>()).poll();
+        if (lane != null) {
+            return lane;
+        }
+        int number = laneCounts.computeIfAbsent(track, k -> new AtomicInteger()).incrementAndGet();
+        lane = nextTrack.getAndIncrement();
+        trackNames.put(lane, trackNames.get(track) + " #" + number);
+        return lane;
+    }
+
+    public void releaseLane(int track, int lane) {
+        if (enabled) {
+            freeLanes.get(track).add(lane);
+        }
+    }
+
+    public int currentTrack() {
+        return currentTrack.get();
+    }
+
+    @SneakyThrows
+    public <T> T onTrack(int track, Callable<T> task) {
+        int previous = currentTrack.get();
+        currentTrack.set(track);
+        try {
+            return task.call();
+        } finally {
+            currentTrack.set(previous);
+        }
+    }
+
+    public void onTrack(int track, Runnable task) {
+        onTrack(track, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // a span from startNanos to now on the current track. args are key, value pairs shown with the span.
+    public void span(String name, String category, long startNanos, Object... args) {
+        span(currentTrack.get(), name, category, startNanos, now(), args);
+    }
+
+    public void span(int track, String name, String category, long startNanos, long endNanos, Object... args) {
+        if (!enabled) {
+            return;
+        }
+        spans.add(new Object[]{track, name, category, startNanos, endNanos, args});
+    }
+
+    @SneakyThrows
+    public void write(Path file) {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode root = mapper.createObjectNode();
+        root.put("displayTimeUnit", "ms");
+        ArrayNode events = root.putArray("traceEvents");
+        trackNames.forEach((track, name) -> {
+            ObjectNode event = events.addObject();
+            event.put("ph", "M").put("name", "thread_name").put("pid", 1).put("tid", track);
+            event.putObject("args").put("name", name);
+        });
+        for (Object[] span : spans) {
+            ObjectNode event = events.addObject();
+            event.put("ph", "X")
+                    .put("pid", 1)
+                    .put("tid", (Integer) span[0])
+                    .put("name", (String) span[1])
+                    .put("cat", (String) span[2])
+                    .put("ts", ((Long) span[3] - origin) / 1000.0)
+                    .put("dur", ((Long) span[4] - (Long) span[3]) / 1000.0);
+            Object[] args = (Object[]) span[5];
+            if (args.length > 0) {
+                ObjectNode argsNode = event.putObject("args");
+                for (int i = 0; i + 1 < args.length; i += 2) {
+                    argsNode.put(String.valueOf(args[i]), String.valueOf(args[i + 1]));
+                }
+            }
+        }
+        mapper.writeValue(file.toFile(), root);
+    }
+}
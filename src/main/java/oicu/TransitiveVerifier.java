@@ -0,0 +1,117 @@
+package oicu;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.graph.DependencyNode;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static oicu.GAVQueryUtils.fetchSha1;
+
+// once a dependency is verified, its dependency graph names the exact gav of many other jars in BOOT-INF/lib.
+// every node whose artifactId:version matches a still unverified jar is checked by sha1, from the local
+// repository if the jar is there, otherwise from the one .sha1 file next to it in the repo.
+// no search on central is needed for them.
+// only dependencies in flight in the lookup pipeline are candidates: one routed to ask is withdrawn,
+// so nobody is asked about a jar that gets verified meanwhile, and a private one is never verified.
+public class TransitiveVerifier {
+    private final ResolverService resolver;
+    private final HttpClientProvider httpClient;
+    // unverifiedArtifactId:unverifiedVersion -> dependencies in flight
+    private final Map<String, Set<Dependency>> pending = new ConcurrentHashMap<>();
+    private final Set<String> expanded = ConcurrentHashMap.newKeySet();
+
+    public TransitiveVerifier(ResolverService resolver, HttpClientProvider httpClient) {
+        this.resolver = resolver;
+        this.httpClient = httpClient;
+    }
+
+    // the pipeline took the dependency, it is a candidate until withdrawn.
+    public void register(Dependency dependency) {
+        pending.computeIfAbsent(key(dependency), k -> ConcurrentHashMap.newKeySet()).add(dependency);
+    }
+
+    // the pipeline settles the dependency, true if it is verified. decided under the dependency's verify lock,
+    // which expand holds while verifying, so a dependency found unverified here is never verified by expand.
+    public boolean withdraw(Dependency dependency) {
+        dependency.verifyLock.lock();
+        try {
+            Set<Dependency> candidates = pending.get(key(dependency));
+            if (candidates != null) {
+                candidates.remove(dependency);
+            }
+            return dependency.isVerified();
+        } finally {
+            dependency.verifyLock.unlock();
+        }
+    }
+
+    private static String key(Dependency dependency) {
+        return dependency.unverifiedArtifactId + ":" + dependency.unverifiedVersion;
+    }
+
+    public void expand(Dependency verified) {
+        if (!verified.isVerified() || verified.repo == null || verified.repo.isEmpty()) {
+            return;
+        }
+        String gav = verified.getVerifiedGroupId() + ":" + verified.getVerifiedArtifactId() + ":" + verified.getVerifiedVersion();
+        if (!expanded.add(gav + "@" + verified.repo)) {
+            return;
+        }
+        DependencyNode root = resolver.collect(verified.getVerifiedGroupId(), verified.getVerifiedArtifactId(), verified.getVerifiedVersion(), verified.repo);
+        if (root == null) {
+            return;
+        }
+        Deque<DependencyNode> nodes = new ArrayDeque<>(root.getChildren());
+        while (!nodes.isEmpty()) {
+            DependencyNode node = nodes.pop();
+            nodes.addAll(node.getChildren());
+            Artifact artifact = node.getArtifact();
+            if (artifact == null || !"jar".equals(artifact.getExtension()) || !artifact.getClassifier().isEmpty()) {
+                continue;
+            }
+            Set<Dependency> candidates = pending.get(artifact.getArtifactId() + ":" + artifact.getVersion());
+            if (candidates == null) {
+                continue;
+            }
+            Sha1Key expectedSha1 = null;
+            for (Dependency candidate : candidates) {
+                if (candidate.isVerified()) {
+                    candidates.remove(candidate);
+                    continue;
+                }
+                if (expectedSha1 == null) {
+                    expectedSha1 = expectedSha1(artifact, verified.repo);
+                    if (expectedSha1 == null) {
+                        break;
+                    }
+                }
+                if (expectedSha1.equals(candidate.hash)) {
+                    candidate.verifyLock.lock();
+                    try {
+                        // not withdrawn while the sha1 was fetched
+                        if (candidates.remove(candidate)) {
+                            candidate.verify(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion(), verified.repo);
+                        }
+                    } finally {
+                        candidate.verifyLock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    private Sha1Key expectedSha1(Artifact artifact, String repo) {
+        Path localJar = resolver.localArtifactPath(artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion());
+        if (Files.isRegularFile(localJar)) {
+            return JarFingerprint.of(localJar).getSha1();
+        }
+        String sha1 = fetchSha1(httpClient, repo, artifact.getGroupId(), artifact.getArtifactId(), artifact.getVersion());
+        return Sha1Key.parseChecksum(sha1);
+    }
+}
@@ -2,14 +2,30 @@ package oicu;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.io.OutputStream;
 import java.io.PrintStream;
-;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
+import org.jetbrains.java.decompiler.main.decompiler.PrintStreamLogger;
+import org.jetbrains.java.decompiler.main.extern.IFernflowerLogger;
+
+import static oicu.FileSystemUtils.extractJar;
 
 public class VineflowerUtils {
+    private static final String BOOT_CLASSES = "BOOT-INF/classes/";
+
     public static void decompileJarLegacy(Path decompilerFile, Path jarFile, Path dstFolder) throws IOException, NoSuchMethodException, InvocationTargetException, IllegalAccessException {
         System.out.println("decompiling "+jarFile);
         // use reflection to invoke decompiler, not runtime.getRuntime.exec, because:
@@ -38,19 +54,140 @@ public class VineflowerUtils {
         }
         System.out.println("decompile done");
     }
-    public static void decompileJar(Path jarFile, Path dstFolder) {
-        PrintStream nullOutputStream = new PrintStream(new OutputStream() {
-            @Override
-            public void write(int b) {
-                // do nothing
+    static final Map<String, Object> DECOMPILE_OPTIONS = Map.of("verify-merges", "1");
+
+    // ConsoleDecompiler.main builds one of these, but logs to System.out.
+    // building it ourselves gives every job its own saver and logger, so jobs can share the jvm.
+    private static class JobDecompiler extends ConsoleDecompiler {
+        JobDecompiler(Path dstFolder, IFernflowerLogger logger) {
+            super(dstFolder.toFile(), DECOMPILE_OPTIONS, logger, SaveType.FOLDER);
+        }
+    }
+
+    public static void decompileJar(Path jarFile, Path dstFolder) throws IOException {
+        decompileJar(jarFile, dstFolder, IFernflowerLogger.NO_OP);
+    }
+
+    public static void decompileJar(Path jarFile, Path dstFolder, PrintStream log) throws IOException {
+        decompileJar(jarFile, dstFolder, new PrintStreamLogger(log));
+    }
+
+    public static void decompileJar(Path jarFile, Path dstFolder, IFernflowerLogger logger) throws IOException {
+        Files.createDirectories(dstFolder);
+        JobDecompiler decompiler = new JobDecompiler(dstFolder, logger);
+        try (decompiler) {
+            decompiler.addSource(jarFile.toFile());
+            decompiler.decompileContext();
+        }
+    }
+
+    public static void decompileJar(Path source, Path dstFolder, DecompileCache cache) throws IOException {
+        decompileJar(source, dstFolder, IFernflowerLogger.NO_OP, cache);
+    }
+
+    // source is a jar or a folder of classes. cache may be null.
+    // classes found in the cache are restored, only the rest goes through vineflower,
+    // with the whole source as library so types still resolve.
+    public static void decompileJar(Path source, Path dstFolder, IFernflowerLogger logger, DecompileCache cache) throws IOException {
+        if (cache == null) {
+            decompileJar(source, dstFolder, logger);
+            return;
+        }
+        Files.createDirectories(dstFolder);
+        boolean isJar = Files.isRegularFile(source);
+        try (FileSystem zipFs = isJar ? FileSystems.newFileSystem(source) : null) {
+            Path root = isJar ? zipFs.getRootDirectories().iterator().next() : source;
+            List<String> classEntries = new ArrayList<>();
+            try (Stream<Path> stream = Files.walk(root)) {
+                for (Path file : stream.toArray(Path[]::new)) {
+                    String name = root.relativize(file).toString().replace('\\', '/');
+                    if (Files.isDirectory(file)) {
+                        Files.createDirectories(dstFolder.resolve(name));
+                    } else if (name.endsWith(".class")) {
+                        classEntries.add(name);
+                    } else {
+                        // vineflower would copy it as is, do the same.
+                        Path destPath = dstFolder.resolve(name);
+                        Files.createDirectories(destPath.getParent());
+                        Files.copy(file, destPath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                }
             }
-        });
-        PrintStream originalOut = System.out;
-        PrintStream originalErr = System.err;
-        System.setOut(nullOutputStream);
-        System.setErr(nullOutputStream);
-        org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler.main(new String[] {"--verify-merges=1", jarFile.toString(), dstFolder.toString()});
-        System.setOut(originalOut);
-        System.setErr(originalErr);
+            Set<String> classSet = new HashSet<>(classEntries);
+            Map<String, String> missed = new TreeMap<>();
+            for (Map.Entry<String, List<String>> group : groupByTopLevelClass(classSet).entrySet()) {
+                String key = cache.key(root, group.getValue());
+                if (!cache.restore(key, dstFolder.resolve(group.getKey() + ".java"))) {
+                    missed.put(group.getKey(), key);
+                }
+            }
+            if (missed.isEmpty()) {
+                return;
+            }
+            Path missedJar = Files.createTempFile("decompile-missed", ".jar");
+            try {
+                try (JarOutputStream jos = new JarOutputStream(Files.newOutputStream(missedJar))) {
+                    for (String entry : classEntries) {
+                        if (missed.containsKey(topLevelClass(entry, classSet))) {
+                            jos.putNextEntry(new JarEntry(entry));
+                            Files.copy(root.resolve(entry), jos);
+                            jos.closeEntry();
+                        }
+                    }
+                }
+                JobDecompiler decompiler = new JobDecompiler(dstFolder, logger);
+                try (decompiler) {
+                    decompiler.addSource(missedJar.toFile());
+                    decompiler.addLibrary(source.toFile());
+                    decompiler.decompileContext();
+                }
+                for (Map.Entry<String, String> entry : missed.entrySet()) {
+                    cache.store(entry.getValue(), dstFolder.resolve(entry.getKey() + ".java"));
+                }
+            } finally {
+                Files.deleteIfExists(missedJar);
+            }
+        }
+    }
+
+    // a/b/X$1.class and a/b/X$Y.class end up in a/b/X.java
+    private static Map<String, List<String>> groupByTopLevelClass(Set<String> classEntries) {
+        Map<String, List<String>> groups = new TreeMap<>();
+        for (String entry : classEntries) {
+            groups.computeIfAbsent(topLevelClass(entry, classEntries), k -> new ArrayList<>()).add(entry);
+        }
+        for (List<String> group : groups.values()) {
+            Collections.sort(group);
+        }
+        return groups;
+    }
+
+    private static String topLevelClass(String classEntry, Set<String> classEntries) {
+        String name = classEntry.substring(0, classEntry.length() - ".class".length());
+        int index = name.indexOf('$', name.lastIndexOf('/') + 1);
+        while (index > 0) {
+            if (classEntries.contains(name.substring(0, index) + ".class")) {
+                return name.substring(0, index);
+            }
+            index = name.indexOf('$', index + 1);
+        }
+        return name;
+    }
+
+    // loader classes, BOOT-INF/lib and META-INF are copied as is, only BOOT-INF/classes goes through vineflower.
+    // the layout of dstFolder is the same as decompileJar on the whole fat jar.
+    public static void decompileBootClasses(Path jarFile, Path dstFolder, DecompileCache cache) throws IOException {
+        extractJar(jarFile, dstFolder, name -> !name.startsWith(BOOT_CLASSES));
+        Path classesFolder = Files.createTempDirectory("boot-classes");
+        try {
+            extractJar(jarFile, classesFolder, name -> name.startsWith(BOOT_CLASSES));
+            Path bootClasses = classesFolder.resolve(BOOT_CLASSES);
+            Path dstClasses = dstFolder.resolve(BOOT_CLASSES);
+            Files.createDirectories(bootClasses);
+            Files.createDirectories(dstClasses);
+            decompileJar(bootClasses, dstClasses, cache);
+        } finally {
+            FileUtils.deleteDirectory(classesFolder.toFile());
+        }
     }
 }